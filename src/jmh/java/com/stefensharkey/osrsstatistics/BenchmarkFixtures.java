@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import net.runelite.api.Client;
+import net.runelite.api.Constants;
+import net.runelite.api.Player;
+import net.runelite.api.Skill;
+import net.runelite.api.Tile;
+import net.runelite.api.coords.WorldPoint;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Set;
+
+/**
+ * Synthetic statistics, and stand-ins for the client and the plugin's config so that overlays can be driven outside
+ * the game. The client reports a player standing in the middle of a flat scene, seen from behind and above, and
+ * answers anything else with zero, false or null.
+ */
+final class BenchmarkFixtures {
+
+    static final String USERNAME = "benchmark";
+    static final int WORLD = 301;
+    // Lumbridge, whose region is well inside the map in every direction.
+    static final int PLAYER_X = 3222;
+    static final int PLAYER_Y = 3218;
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Returns the width of the square of tiles, centred on the player, which a data set of the given size fills row by
+     * row.
+     */
+    static int side(int tiles) {
+        return (int) Math.ceil(Math.sqrt(tiles));
+    }
+
+    static int tileX(int tile, int side) {
+        return PLAYER_X - side / 2 + tile % side;
+    }
+
+    static int tileY(int tile, int side) {
+        return PLAYER_Y - side / 2 + tile / side;
+    }
+
+    /**
+     * Returns the number of the tile at the given location in a data set of the given size, or -1 if it has no data.
+     */
+    static int tileAt(int x, int y, int tiles, int side) {
+        int column = x - (PLAYER_X - side / 2);
+        int row = y - (PLAYER_Y - side / 2);
+        int tile = row * side + column;
+
+        return column < 0 || column >= side || row < 0 || tile >= tiles ? -1 : tile;
+    }
+
+    static int npcId(int tile) {
+        return 1 + tile % 7;
+    }
+
+    static int kills(int tile) {
+        return 1 + tile % 5;
+    }
+
+    static Skill skill(int tile) {
+        // The last skill is the overall total, which is never gained directly.
+        return Skill.values()[tile % (Skill.values().length - 1)];
+    }
+
+    static int xp(int tile) {
+        return 10 + tile % 1000;
+    }
+
+    /**
+     * A client whose camera and hovered tile can be changed between frames.
+     */
+    static final class StubClient implements InvocationHandler {
+
+        private final int[][][] tileHeights = new int[Constants.MAX_Z][Constants.SCENE_SIZE][Constants.SCENE_SIZE];
+        private final byte[][][] tileSettings = new byte[Constants.MAX_Z][Constants.SCENE_SIZE][Constants.SCENE_SIZE];
+        private final Client client = proxy(Client.class, this);
+        private final Player player = proxy(Player.class, (proxy, method, args) -> switch (method.getName()) {
+            case "getName" -> USERNAME;
+            case "getWorldLocation" -> new WorldPoint(PLAYER_X, PLAYER_Y, 0);
+            default -> defaultValue(proxy, method, args);
+        });
+
+        private volatile WorldPoint hoveredLocation = new WorldPoint(PLAYER_X, PLAYER_Y, 0);
+        private final Tile hoveredTile = proxy(Tile.class, (proxy, method, args) ->
+                method.getName().equals("getWorldLocation") ? hoveredLocation : defaultValue(proxy, method, args));
+
+        private volatile int cameraYaw;
+
+        Client getClient() {
+            return client;
+        }
+
+        void setCameraYaw(int cameraYaw) {
+            this.cameraYaw = cameraYaw;
+        }
+
+        void setHoveredLocation(int x, int y) {
+            hoveredLocation = new WorldPoint(x, y, 0);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            // The scene is centred on the player, and the camera sits behind them, looking north and down.
+            int baseX = PLAYER_X - Constants.SCENE_SIZE / 2;
+            int baseY = PLAYER_Y - Constants.SCENE_SIZE / 2;
+
+            return switch (method.getName()) {
+                case "getBaseX" -> baseX;
+                case "getBaseY" -> baseY;
+                case "getPlane" -> 0;
+                case "getCameraX" -> (PLAYER_X - baseX) * 128;
+                case "getCameraY" -> (PLAYER_Y - baseY) * 128 - 1500;
+                case "getCameraZ" -> -1000;
+                case "getCameraPitch" -> 256;
+                case "getCameraYaw" -> cameraYaw;
+                case "getScale" -> 512;
+                case "getViewportWidth" -> 765;
+                case "getViewportHeight" -> 503;
+                case "getTileHeights" -> tileHeights;
+                case "getTileSettings" -> tileSettings;
+                case "getLocalPlayer" -> player;
+                case "getSelectedSceneTile" -> hoveredTile;
+                default -> defaultValue(proxy, method, args);
+            };
+        }
+    }
+
+    /**
+     * Returns a config with the given options switched on, and every other option at its default.
+     */
+    static StatisticsConfig config(String ... enabled) {
+        Set<String> enabledMethods = Set.of(enabled);
+
+        return proxy(StatisticsConfig.class, (proxy, method, args) -> {
+            if (enabledMethods.contains(method.getName())) {
+                return true;
+            }
+
+            return method.isDefault() ? InvocationHandler.invokeDefault(proxy, method, args)
+                                      : defaultValue(proxy, method, args);
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    private static Object defaultValue(Object proxy, Method method, Object[] args) {
+        return switch (method.getName()) {
+            case "equals" -> proxy == args[0];
+            case "hashCode" -> System.identityHashCode(proxy);
+            case "toString" -> proxy.getClass().getInterfaces()[0].getSimpleName() + " stub";
+            default -> {
+                Class<?> returnType = method.getReturnType();
+
+                // A one element array of a primitive type holds that type's zero.
+                yield returnType.isPrimitive() && returnType != void.class
+                      ? Array.get(Array.newInstance(returnType, 1), 0)
+                      : null;
+            }
+        };
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static com.stefensharkey.osrsstatistics.BenchmarkFixtures.USERNAME;
+import static com.stefensharkey.osrsstatistics.BenchmarkFixtures.WORLD;
+
+/**
+ * Writes and reads against a SQLite database in a temporary file, holding one player's history of the given number of
+ * tiles. Each write is a batch the size of a typical flush, and each area read covers the player's region.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+    private static final int SETUP_BATCH_SIZE = 10_000;
+    private static final int REGION_SIZE = 64;
+
+    @Param({"1000", "100000", "1000000"})
+    private int tiles;
+
+    private Path directory;
+    private Database database;
+
+    private final StatisticsBuffer killBatch = new StatisticsBuffer();
+    private final StatisticsBuffer xpBatch = new StatisticsBuffer();
+    private final StatisticsBuffer lootBatch = new StatisticsBuffer();
+
+    private final int minX = BenchmarkFixtures.PLAYER_X / REGION_SIZE * REGION_SIZE;
+    private final int minY = BenchmarkFixtures.PLAYER_Y / REGION_SIZE * REGION_SIZE;
+    private final int maxX = minX + REGION_SIZE - 1;
+    private final int maxY = minY + REGION_SIZE - 1;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("statistics-benchmark");
+        // The replica skips the clan totals, so it would leave their upserts out of every write.
+        database = Database.openSqlite(directory.resolve("benchmark.db"), new StatisticsMetrics());
+
+        int hour = TimeBucket.HOURLY.of(System.currentTimeMillis());
+        int side = BenchmarkFixtures.side(tiles);
+        StatisticsBuffer buffer = new StatisticsBuffer();
+
+        for (int tile = 0; tile < tiles; tile++) {
+            addTile(buffer, tile, side, hour);
+
+            if ((tile + 1) % SETUP_BATCH_SIZE == 0) {
+                database.writeBuffer(buffer);
+                buffer.clear();
+            }
+        }
+
+        database.writeBuffer(buffer);
+
+        for (int tile = 0; tile < BATCH_SIZE; tile++) {
+            int x = BenchmarkFixtures.tileX(tile, side);
+            int y = BenchmarkFixtures.tileY(tile, side);
+
+            killBatch.addKills(new StatisticsBuffer.KillKey(USERNAME, x, y, 0, WORLD, BenchmarkFixtures.npcId(tile),
+                                                            hour), 1);
+            xpBatch.addXp(new StatisticsBuffer.XpKey(USERNAME, x, y, 0, WORLD, BenchmarkFixtures.skill(tile), hour),
+                          BenchmarkFixtures.xp(tile), 1);
+            lootBatch.addLoot(new StatisticsBuffer.LootKey(USERNAME, BenchmarkFixtures.npcId(tile), tile, hour), 1);
+        }
+    }
+
+    /**
+     * Adds a tile's kills and XP, and for every tenth tile a drop, so that the loot grows with the rest of the data.
+     */
+    private static void addTile(StatisticsBuffer buffer, int tile, int side, int hour) {
+        int x = BenchmarkFixtures.tileX(tile, side);
+        int y = BenchmarkFixtures.tileY(tile, side);
+
+        buffer.addKills(new StatisticsBuffer.KillKey(USERNAME, x, y, 0, WORLD, BenchmarkFixtures.npcId(tile), hour),
+                        BenchmarkFixtures.kills(tile));
+        buffer.addXp(new StatisticsBuffer.XpKey(USERNAME, x, y, 0, WORLD, BenchmarkFixtures.skill(tile), hour),
+                     BenchmarkFixtures.xp(tile), 1);
+
+        if (tile % 10 == 0) {
+            buffer.addLoot(new StatisticsBuffer.LootKey(USERNAME, tile / 10 % 1000, tile / 10_000, hour), 1);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        database.close();
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public void writeKills() {
+        database.writeBuffer(killBatch);
+    }
+
+    @Benchmark
+    public void writeXp() {
+        database.writeBuffer(xpBatch);
+    }
+
+    @Benchmark
+    public void writeLoot() {
+        database.writeBuffer(lootBatch);
+    }
+
+    @Benchmark
+    public TileStore retrieveKillMap() {
+        return database.retrieveKillMap(USERNAME, 0, minX, minY, maxX, maxY);
+    }
+
+    @Benchmark
+    public TileStore retrieveXpMap() {
+        return database.retrieveXpMap(USERNAME, 0, minX, minY, maxX, maxY);
+    }
+
+    @Benchmark
+    public Map<Integer, Map<Integer, Integer>> retrieveLootMap() {
+        return database.retrieveLootMap(USERNAME);
+    }
+}
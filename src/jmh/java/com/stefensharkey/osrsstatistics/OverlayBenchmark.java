@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import net.runelite.api.Skill;
+import net.runelite.client.ui.overlay.Overlay;
+import net.runelite.client.ui.overlay.tooltip.TooltipManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.stefensharkey.osrsstatistics.BenchmarkFixtures.PLAYER_X;
+import static com.stefensharkey.osrsstatistics.BenchmarkFixtures.PLAYER_Y;
+
+/**
+ * Renders a frame of the kill and XP overlays, tiles and tooltip together, around a player standing in a data set of
+ * the given number of tiles. Data is served from memory in place of the database, so only the overlay is measured.
+ *
+ * <p>A still frame reuses everything worked out for the last one. A moving camera forces every visible tile to be
+ * projected again, and sweeping the hovered tile across more tiles than the tooltip cache holds forces every tooltip
+ * to be built again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OverlayBenchmark {
+
+    private static final int VIEWPORT_WIDTH = 765;
+    private static final int VIEWPORT_HEIGHT = 503;
+    private static final int HOVER_SWEEP_SIZE = 16;
+    private static final long LOAD_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    private int tiles;
+
+    private final BenchmarkFixtures.StubClient client = new BenchmarkFixtures.StubClient();
+    private final TooltipManager tooltipManager = new TooltipManager();
+
+    private StatisticsPlugin plugin;
+    private StatisticsKillOverlay killOverlay;
+    private StatisticsXpOverlay xpOverlay;
+    private Graphics2D graphics;
+    private int frame;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        plugin = new StatisticsPlugin();
+        plugin.reader = new DatabaseReader(null);
+        plugin.killCache = new RegionCache<>(loader(TileStore::forKills, this::addKillTile));
+        plugin.xpCache = new RegionCache<>(loader(TileStore::forXp, this::addXpTile));
+
+        killOverlay = new StatisticsKillOverlay(client.getClient(), plugin,
+                                                BenchmarkFixtures.config("isKillOverlayEnabled",
+                                                                         "isKillTooltipEnabled"),
+                                                tooltipManager);
+        xpOverlay = new StatisticsXpOverlay(client.getClient(), plugin,
+                                            BenchmarkFixtures.config("isXpOverlayEnabled", "isXpTooltipEnabled"),
+                                            tooltipManager);
+        graphics = new BufferedImage(VIEWPORT_WIDTH, VIEWPORT_HEIGHT, BufferedImage.TYPE_INT_ARGB).createGraphics();
+
+        awaitLoaded(killOverlay);
+        awaitLoaded(xpOverlay);
+    }
+
+    @TearDown
+    public void tearDown() {
+        plugin.reader.shutdown();
+        graphics.dispose();
+    }
+
+    /**
+     * Returns a loader which builds each region's data from the data set, as the database would return it.
+     */
+    private RegionCache.Loader<TileStore> loader(Supplier<TileStore> empty, TileAdder adder) {
+        int side = BenchmarkFixtures.side(tiles);
+
+        return (username, plane, minX, minY, maxX, maxY) -> {
+            TileStore region = empty.get();
+
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    int tile = BenchmarkFixtures.tileAt(x, y, tiles, side);
+
+                    if (plane == 0 && tile >= 0) {
+                        adder.add(region, region.getOrAdd(TileStore.pack(x, y, plane)), tile);
+                    }
+                }
+            }
+
+            return CompletableFuture.completedFuture(region);
+        };
+    }
+
+    private void addKillTile(TileStore region, int index, int tile) {
+        region.add(index, 0, BenchmarkFixtures.kills(tile));
+        region.addDetail(index, BenchmarkFixtures.npcId(tile), BenchmarkFixtures.kills(tile));
+    }
+
+    private void addXpTile(TileStore region, int index, int tile) {
+        Skill skill = BenchmarkFixtures.skill(tile);
+        region.add(index, TileStore.xpChannel(skill, false), BenchmarkFixtures.xp(tile));
+        region.add(index, TileStore.xpChannel(skill, true), 1);
+    }
+
+    /**
+     * Renders frames until the overlay shows a tooltip for the player's tile, which it can only do once its data has
+     * been loaded in the background.
+     */
+    private void awaitLoaded(Overlay overlay) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + LOAD_TIMEOUT_MS;
+
+        while (System.currentTimeMillis() < deadline) {
+            tooltipManager.clear();
+            overlay.render(graphics);
+
+            if (!tooltipManager.getTooltips().isEmpty()) {
+                tooltipManager.clear();
+                return;
+            }
+
+            Thread.sleep(10);
+        }
+
+        throw new IllegalStateException("Timed out loading data for " + overlay.getClass().getSimpleName());
+    }
+
+    @Benchmark
+    public void killOverlayStill() {
+        renderStill(killOverlay);
+    }
+
+    @Benchmark
+    public void killOverlayMovingCamera() {
+        renderMovingCamera(killOverlay);
+    }
+
+    @Benchmark
+    public void killOverlayHoverSweep() {
+        renderHoverSweep(killOverlay);
+    }
+
+    @Benchmark
+    public void xpOverlayStill() {
+        renderStill(xpOverlay);
+    }
+
+    @Benchmark
+    public void xpOverlayMovingCamera() {
+        renderMovingCamera(xpOverlay);
+    }
+
+    @Benchmark
+    public void xpOverlayHoverSweep() {
+        renderHoverSweep(xpOverlay);
+    }
+
+    private void renderStill(Overlay overlay) {
+        client.setCameraYaw(0);
+        client.setHoveredLocation(PLAYER_X, PLAYER_Y);
+        render(overlay);
+    }
+
+    private void renderMovingCamera(Overlay overlay) {
+        client.setCameraYaw(frame++ & 1);
+        client.setHoveredLocation(PLAYER_X, PLAYER_Y);
+        render(overlay);
+    }
+
+    private void renderHoverSweep(Overlay overlay) {
+        int position = frame++ % (HOVER_SWEEP_SIZE * HOVER_SWEEP_SIZE);
+
+        client.setCameraYaw(0);
+        client.setHoveredLocation(PLAYER_X - HOVER_SWEEP_SIZE / 2 + position % HOVER_SWEEP_SIZE,
+                                  PLAYER_Y - HOVER_SWEEP_SIZE / 2 + position / HOVER_SWEEP_SIZE);
+        render(overlay);
+    }
+
+    private void render(Overlay overlay) {
+        tooltipManager.clear();
+        overlay.render(graphics);
+    }
+
+    @FunctionalInterface
+    private interface TileAdder {
+
+        void add(TileStore region, int index, int tile);
+    }
+}
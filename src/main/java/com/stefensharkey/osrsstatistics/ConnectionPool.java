@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small pool of database connections, each of which keeps its own cache of prepared statements.
+ */
+@Slf4j
+class ConnectionPool implements AutoCloseable {
+
+    private static final int STATEMENT_CACHE_SIZE = 32;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final long VALIDATE_AFTER_IDLE_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final long IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final long BORROW_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private final DataSource dataSource;
+    private final int maxConnections;
+    // Most recently returned connections are at the front, so that the least used ones age out.
+    private final Deque<PooledConnection> idleConnections = new ArrayDeque<>();
+    private final ScheduledExecutorService evictor;
+
+    private int openConnections;
+    private boolean closed;
+
+    ConnectionPool(DataSource dataSource, int maxConnections) {
+        this.dataSource = dataSource;
+        this.maxConnections = Math.max(1, maxConnections);
+
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "statistics-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdleConnections, IDLE_TIMEOUT_MS, IDLE_TIMEOUT_MS,
+                                       TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes a connection from the pool, opening a new one if none are idle and the pool is not yet full. The
+     * connection is returned to the pool when it is closed.
+     */
+    PooledConnection borrow() throws SQLException {
+        long deadline = System.currentTimeMillis() + BORROW_TIMEOUT_MS;
+
+        while (true) {
+            PooledConnection pooledConnection;
+
+            synchronized (this) {
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+
+                pooledConnection = idleConnections.pollFirst();
+
+                if (pooledConnection == null) {
+                    if (openConnections < maxConnections) {
+                        openConnections++;
+                    } else {
+                        long remaining = deadline - System.currentTimeMillis();
+
+                        if (remaining <= 0) {
+                            throw new SQLTimeoutException("Timed out waiting for a database connection");
+                        }
+
+                        try {
+                            wait(remaining);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new SQLException("Interrupted waiting for a database connection", e);
+                        }
+
+                        continue;
+                    }
+                }
+            }
+
+            if (pooledConnection == null) {
+                try {
+                    return new PooledConnection(this, dataSource.getConnection());
+                } catch (SQLException | RuntimeException e) {
+                    discarded();
+                    throw e;
+                }
+            }
+
+            if (isUsable(pooledConnection)) {
+                return pooledConnection;
+            }
+
+            pooledConnection.closeQuietly();
+            discarded();
+        }
+    }
+
+    private boolean isUsable(PooledConnection pooledConnection) {
+        // Only check connections which have sat idle long enough for the server to have dropped them.
+        if (System.currentTimeMillis() - pooledConnection.lastUsed < VALIDATE_AFTER_IDLE_MS) {
+            return true;
+        }
+
+        try {
+            return pooledConnection.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pooledConnection) {
+        boolean reusable;
+
+        try {
+            reusable = !pooledConnection.broken && !pooledConnection.connection.isClosed();
+
+            if (reusable && !pooledConnection.connection.getAutoCommit()) {
+                pooledConnection.connection.rollback();
+                pooledConnection.connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            reusable = false;
+        }
+
+        synchronized (this) {
+            if (reusable && !closed) {
+                pooledConnection.lastUsed = System.currentTimeMillis();
+                idleConnections.addFirst(pooledConnection);
+                notifyAll();
+                return;
+            }
+        }
+
+        pooledConnection.closeQuietly();
+        discarded();
+    }
+
+    private synchronized void discarded() {
+        openConnections--;
+        notifyAll();
+    }
+
+    private void evictIdleConnections() {
+        List<PooledConnection> evicted = new ArrayList<>();
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<PooledConnection> iterator = idleConnections.descendingIterator();
+
+            while (iterator.hasNext()) {
+                PooledConnection pooledConnection = iterator.next();
+
+                if (now - pooledConnection.lastUsed >= IDLE_TIMEOUT_MS) {
+                    iterator.remove();
+                    evicted.add(pooledConnection);
+                }
+            }
+        }
+
+        for (PooledConnection pooledConnection : evicted) {
+            pooledConnection.closeQuietly();
+            discarded();
+        }
+    }
+
+    /**
+     * Closes every idle connection. Connections which are currently borrowed are closed once they are returned.
+     */
+    @Override
+    public void close() {
+        List<PooledConnection> connections;
+
+        synchronized (this) {
+            closed = true;
+            connections = new ArrayList<>(idleConnections);
+            idleConnections.clear();
+            notifyAll();
+        }
+
+        evictor.shutdownNow();
+
+        for (PooledConnection pooledConnection : connections) {
+            pooledConnection.closeQuietly();
+            discarded();
+        }
+    }
+
+    static final class PooledConnection implements AutoCloseable {
+
+        private final ConnectionPool pool;
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+
+        private long lastUsed = System.currentTimeMillis();
+        private boolean broken;
+
+        private PooledConnection(ConnectionPool pool, Connection connection) {
+            this.pool = pool;
+            this.connection = connection;
+
+            statements = new LinkedHashMap<>(16, 0.75F, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() > STATEMENT_CACHE_SIZE) {
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+
+                    return false;
+                }
+            };
+        }
+
+        Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Returns a prepared statement for the SQL, reusing the one prepared earlier on this connection if possible.
+         * The statement belongs to the cache and must not be closed by the caller.
+         */
+        PreparedStatement prepareStatement(String sqlString) throws SQLException {
+            PreparedStatement preparedStatement = statements.get(sqlString);
+
+            if (preparedStatement == null || preparedStatement.isClosed()) {
+                preparedStatement = connection.prepareStatement(sqlString);
+                statements.put(sqlString, preparedStatement);
+            }
+
+            return preparedStatement;
+        }
+
+        /**
+         * Marks the connection as unfit for reuse, so that it is closed rather than returned to the pool.
+         */
+        void invalidate() {
+            broken = true;
+        }
+
+        @Override
+        public void close() {
+            pool.release(this);
+        }
+
+        private void closeQuietly() {
+            for (PreparedStatement preparedStatement : statements.values()) {
+                closeQuietly(preparedStatement);
+            }
+
+            statements.clear();
+
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.debug("Failed to close database connection", e);
+            }
+        }
+
+        private static void closeQuietly(PreparedStatement preparedStatement) {
+            try {
+                preparedStatement.close();
+            } catch (SQLException e) {
+                log.debug("Failed to close prepared statement", e);
+            }
+        }
+    }
+}
@@ -27,294 +27,1460 @@ package com.stefensharkey.osrsstatistics;
 import com.mysql.cj.jdbc.MysqlDataSource;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
-import net.runelite.api.Actor;
-import net.runelite.api.Client;
-import net.runelite.api.Player;
 import net.runelite.api.Skill;
-import net.runelite.api.coords.WorldPoint;
 import net.runelite.client.RuneLite;
-import net.runelite.client.game.ItemStack;
 import org.mariadb.jdbc.MariaDbDataSource;
 import org.sqlite.SQLiteDataSource;
 
 import javax.sql.DataSource;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.EnumMap;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 @Slf4j
 public class Database {
 
-    private Connection connection;
+    private static final int SQLITE_BUSY_TIMEOUT_MS = 5000;
+    // Negative cache sizes are in KiB rather than pages.
+    private static final int SQLITE_CACHE_SIZE = -16384;
 
+    // Tiles are grouped into 64x64 regions, the same as the game's own map regions.
+    private static final int REGION_SHIFT = 6;
+
+    // How many whole days of hourly rows are kept before they are rolled up into daily rows.
+    static final int HOURLY_RETENTION_DAYS = 7;
+
+    // The tile columns lead with the plane and region, so that reading an area seeks straight to its rows.
+    private static final List<String> KILL_COLUMNS =
+            List.of("plane", "region_id", "x_coord", "y_coord", "world", "npc_id");
+    private static final List<String> XP_COLUMNS =
+            List.of("plane", "region_id", "x_coord", "y_coord", "world", "skill_id");
+    private static final List<String> LOOT_COLUMNS = List.of("npc_id", "item_id");
+
+    // The columns the map queries select, in the order their handlers read them.
+    private static final String KILL_PROJECTION = "x_coord, y_coord, plane, npc_id, count";
+    private static final String XP_PROJECTION = "x_coord, y_coord, plane, skill_id, xp, count";
+
+    static final List<SnapshotTable> SNAPSHOT_TABLES = snapshotTables();
+
+    // How many imported rows are written between commits.
+    private static final int IMPORT_COMMIT_ROWS = 100_000;
+
+    // How long the ids of batches sent on from an outbox are kept. A batch is only sent again if its client failed to
+    // remove it from the outbox once it had been applied, so this covers the client being closed for a while first.
+    private static final long APPLIED_BATCH_RETENTION_MS = TimeUnit.DAYS.toMillis(30);
+
+    // Writes all go through one connection, so they never contend with each other for the database's locks, while
+    // reads have connections of their own and aren't held up behind writes.
+    private volatile ConnectionPool writeConnections;
+    private volatile ConnectionPool readConnections;
+    private volatile int fetchSize;
+    // Whether the tables have been created and migrated since the database was last configured.
+    private volatile boolean ready;
+    // Counts how many times the database has been configured, so that opening it can tell if the config changed.
+    private volatile int configuration;
+    private final Object openLock = new Object();
+    private String tablePrefix;
+    private SqlDialect dialect;
+    private final Map<String, Integer> playerIds = new ConcurrentHashMap<>();
+
+    private String tableNamePlayers;
+    private String tableNameJournal;
+    private String tableNameAppliedBatches;
     private String tableNameKills;
+    private String tableNameNpcKills;
     private String tableNameLoot;
     private String tableNameXp;
+    private String tableNameClanKills;
+    private String tableNameClanNpcKills;
+    private String tableNameClanLoot;
+    private String tableNameClanXp;
+    private String tableNameReplicaSync;
+
+    private String upsertKillSql;
+    private String upsertLootSql;
+    private String upsertXpSql;
+    private String upsertNpcKillSql;
+    private String upsertKillHourlySql;
+    private String upsertLootHourlySql;
+    private String upsertXpHourlySql;
+    private String insertIgnoreSql;
+    private String insertPlayerSql;
+    private List<String> rollUpSql;
+    private Map<String, String> snapshotUpsertSql;
+    private ClanTable clanKills;
+    private ClanTable clanNpcKills;
+    private ClanTable clanLoot;
+    private ClanTable clanXp;
+
+    private volatile UUID journalId;
 
-    Database(StatisticsConfig config) {
+    private final StatisticsMetrics metrics;
+    // Distinguishes this database's timings from those of any other, such as the local replica's.
+    private final String metricPrefix;
+    // Whether the clan tables are kept up to date. The local replica never serves clan reads, so it skips them.
+    private final boolean clanTotals;
+
+    /**
+     * Configures the database without connecting to it, so that a server which is unreachable at startup doesn't
+     * stop statistics being captured. Nothing is read or written until it has been {@link #open opened}.
+     */
+    Database(StatisticsConfig config, StatisticsMetrics metrics) {
+        this(metrics, "database.", true);
         updateConfig(config);
     }
 
+    private Database(StatisticsMetrics metrics, String metricPrefix, boolean clanTotals) {
+        this.metrics = metrics;
+        this.metricPrefix = metricPrefix;
+        this.clanTotals = clanTotals;
+    }
+
+    /**
+     * Connects to the database and brings its tables up to date, unless that has been done since it was last
+     * configured. Migrating a long history can take a while, so this is left to the writer thread.
+     */
+    void open() throws SQLException {
+        synchronized (openLock) {
+            if (!ready) {
+                int openedConfiguration = configuration;
+                createDatabase(tablePrefix, dialect);
+
+                // A database configured part way through still needs opening in turn.
+                ready = openedConfiguration == configuration;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the database has been opened since it was last configured. Until then, its tables may be
+     * missing or in an older layout.
+     */
+    boolean isReady() {
+        return ready;
+    }
+
+    private void createDatabase(String tablePrefix, SqlDialect dialect) throws SQLException {
+        try (ConnectionPool.PooledConnection pooledConnection = writeConnections.borrow();
+             Statement statement = pooledConnection.getConnection().createStatement()) {
+            new SchemaMigrator(tablePrefix, dialect).migrate(pooledConnection.getConnection());
+
+            // Player Table, giving each username a compact id for the other tables to refer to.
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNamePlayers +
+                              " (" + dialect.autoIncrementPrimaryKey("player_id") + ", " +
+                              """
+                                  username VARCHAR(50) NOT NULL UNIQUE,
+                                  account_hash BIGINT NULL
+                              )
+                              """);
+
+            // XP Table, holding one row per skill. Skills are identified by their ordinal.
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameXp +
+                              """
+                              (
+                                  player_id INT UNSIGNED NOT NULL,
+                                  plane TINYINT UNSIGNED NOT NULL,
+                                  region_id SMALLINT UNSIGNED NOT NULL,
+                                  x_coord SMALLINT UNSIGNED NOT NULL,
+                                  y_coord SMALLINT UNSIGNED NOT NULL,
+                                  world SMALLINT UNSIGNED NOT NULL,
+                                  skill_id TINYINT UNSIGNED NOT NULL,
+                                  xp INT UNSIGNED NOT NULL DEFAULT 0,
+                                  count INT UNSIGNED NOT NULL DEFAULT 0,
+                                  PRIMARY KEY (player_id, plane, region_id, x_coord, y_coord, world, skill_id)
+                              )
+                              """ + dialect.clusteredTableOptions());
+
+            // Kill Table
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameKills +
+                              """
+                              (
+                                  player_id INT UNSIGNED NOT NULL,
+                                  plane TINYINT UNSIGNED NOT NULL,
+                                  region_id SMALLINT UNSIGNED NOT NULL,
+                                  x_coord SMALLINT UNSIGNED NOT NULL,
+                                  y_coord SMALLINT UNSIGNED NOT NULL,
+                                  world SMALLINT UNSIGNED NOT NULL,
+                                  npc_id MEDIUMINT UNSIGNED NOT NULL,
+                                  count INT UNSIGNED NOT NULL DEFAULT 0,
+                                  PRIMARY KEY (player_id, plane, region_id, x_coord, y_coord, world, npc_id)
+                              )
+                              """ + dialect.clusteredTableOptions());
+
+            // NPC Kill Table, holding each player's total kills of each NPC across every tile.
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameNpcKills +
+                              """
+                              (
+                                  player_id INT UNSIGNED NOT NULL,
+                                  npc_id MEDIUMINT UNSIGNED NOT NULL,
+                                  count INT UNSIGNED NOT NULL DEFAULT 0,
+                                  PRIMARY KEY (player_id, npc_id)
+                              )
+                              """);
+
+            // Loot Table
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameLoot +
+                              """
+                              (
+                                  player_id INT UNSIGNED NOT NULL,
+                                  npc_id MEDIUMINT UNSIGNED NOT NULL,
+                                  item_id MEDIUMINT UNSIGNED NOT NULL,
+                                  quantity INT UNSIGNED NOT NULL,
+                                  PRIMARY KEY (player_id, npc_id, item_id)
+                              )
+                              """);
+
+            // Clan Tables, holding the totals of every player together, so that they read as cheaply as one player's.
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameClanKills +
+                              """
+                              (
+                                  plane TINYINT UNSIGNED NOT NULL,
+                                  region_id SMALLINT UNSIGNED NOT NULL,
+                                  x_coord SMALLINT UNSIGNED NOT NULL,
+                                  y_coord SMALLINT UNSIGNED NOT NULL,
+                                  world SMALLINT UNSIGNED NOT NULL,
+                                  npc_id MEDIUMINT UNSIGNED NOT NULL,
+                                  count INT UNSIGNED NOT NULL DEFAULT 0,
+                                  PRIMARY KEY (plane, region_id, x_coord, y_coord, world, npc_id)
+                              )
+                              """ + dialect.clusteredTableOptions());
+
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameClanNpcKills +
+                              """
+                              (
+                                  npc_id MEDIUMINT UNSIGNED NOT NULL PRIMARY KEY,
+                                  count INT UNSIGNED NOT NULL DEFAULT 0
+                              )
+                              """);
+
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameClanLoot +
+                              """
+                              (
+                                  npc_id MEDIUMINT UNSIGNED NOT NULL,
+                                  item_id MEDIUMINT UNSIGNED NOT NULL,
+                                  quantity INT UNSIGNED NOT NULL,
+                                  PRIMARY KEY (npc_id, item_id)
+                              )
+                              """);
+
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameClanXp +
+                              """
+                              (
+                                  plane TINYINT UNSIGNED NOT NULL,
+                                  region_id SMALLINT UNSIGNED NOT NULL,
+                                  x_coord SMALLINT UNSIGNED NOT NULL,
+                                  y_coord SMALLINT UNSIGNED NOT NULL,
+                                  world SMALLINT UNSIGNED NOT NULL,
+                                  skill_id TINYINT UNSIGNED NOT NULL,
+                                  xp INT UNSIGNED NOT NULL DEFAULT 0,
+                                  count INT UNSIGNED NOT NULL DEFAULT 0,
+                                  PRIMARY KEY (plane, region_id, x_coord, y_coord, world, skill_id)
+                              )
+                              """ + dialect.clusteredTableOptions());
+
+            // Journal Table, holding the last journaled event written by each client.
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameJournal +
+                              """
+                              (
+                                  journal_id CHAR(36) NOT NULL PRIMARY KEY,
+                                  sequence BIGINT NOT NULL
+                              )
+                              """);
+
+            // Applied Batches Table, holding the id of every batch recently sent on from a client's outbox.
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameAppliedBatches +
+                              """
+                              (
+                                  batch_id CHAR(36) NOT NULL PRIMARY KEY,
+                                  applied_at BIGINT NOT NULL DEFAULT 0
+                              )
+                              """);
+
+            // Time-bucketed copies of the tables above. Only the hourly and daily totals are kept, so that the tables
+            // grow with the time played rather than with the number of events.
+            for (TimeBucket bucket : TimeBucket.values()) {
+                statement.execute("CREATE TABLE IF NOT EXISTS " + bucket.tableName(tableNameXp) +
+                                  """
+                                  (
+                                      player_id INT UNSIGNED NOT NULL,
+                                      bucket %s NOT NULL,
+                                      plane TINYINT UNSIGNED NOT NULL,
+                                      region_id SMALLINT UNSIGNED NOT NULL,
+                                      x_coord SMALLINT UNSIGNED NOT NULL,
+                                      y_coord SMALLINT UNSIGNED NOT NULL,
+                                      world SMALLINT UNSIGNED NOT NULL,
+                                      skill_id TINYINT UNSIGNED NOT NULL,
+                                      xp INT UNSIGNED NOT NULL DEFAULT 0,
+                                      count INT UNSIGNED NOT NULL DEFAULT 0,
+                                      PRIMARY KEY (player_id, bucket, plane, region_id, x_coord, y_coord, world, skill_id)
+                                  )
+                                  """.formatted(bucket.getColumnType()) + dialect.clusteredTableOptions());
+
+                statement.execute("CREATE TABLE IF NOT EXISTS " + bucket.tableName(tableNameKills) +
+                                  """
+                                  (
+                                      player_id INT UNSIGNED NOT NULL,
+                                      bucket %s NOT NULL,
+                                      plane TINYINT UNSIGNED NOT NULL,
+                                      region_id SMALLINT UNSIGNED NOT NULL,
+                                      x_coord SMALLINT UNSIGNED NOT NULL,
+                                      y_coord SMALLINT UNSIGNED NOT NULL,
+                                      world SMALLINT UNSIGNED NOT NULL,
+                                      npc_id MEDIUMINT UNSIGNED NOT NULL,
+                                      count INT UNSIGNED NOT NULL DEFAULT 0,
+                                      PRIMARY KEY (player_id, bucket, plane, region_id, x_coord, y_coord, world, npc_id)
+                                  )
+                                  """.formatted(bucket.getColumnType()) + dialect.clusteredTableOptions());
+
+                statement.execute("CREATE TABLE IF NOT EXISTS " + bucket.tableName(tableNameLoot) +
+                                  """
+                                  (
+                                      player_id INT UNSIGNED NOT NULL,
+                                      bucket %s NOT NULL,
+                                      npc_id MEDIUMINT UNSIGNED NOT NULL,
+                                      item_id MEDIUMINT UNSIGNED NOT NULL,
+                                      quantity INT UNSIGNED NOT NULL,
+                                      PRIMARY KEY (player_id, bucket, npc_id, item_id)
+                                  )
+                                  """.formatted(bucket.getColumnType()));
+
+                // The bucketed tables are keyed by time first, so an area over a long span of time is read through
+                // an index holding every column the query needs instead.
+                createIndex(pooledConnection.getConnection(), bucket.tableName(tableNameXp),
+                            keyColumns(XP_COLUMNS, true), List.of("xp", "count"));
+                createIndex(pooledConnection.getConnection(), bucket.tableName(tableNameKills),
+                            keyColumns(KILL_COLUMNS, true), List.of("count"));
+            }
+        }
+    }
+
+    /**
+     * Creates an index on the player and area columns of a bucketed table, followed by the bucket, the rest of its
+     * key and the given value columns, unless one already exists. MySQL has no CREATE INDEX IF NOT EXISTS, so the
+     * existing indexes are looked up instead.
+     */
+    private static void createIndex(Connection connection, String tableName, List<String> keyColumns,
+                                    List<String> valueColumns) throws SQLException {
+        String indexName = tableName + "_by_region";
+
+        // Without a catalog, MySQL would also search every other database on the server.
+        try (ResultSet resultSet = connection.getMetaData().getIndexInfo(connection.getCatalog(), null, tableName,
+                                                                         false, true)) {
+            while (resultSet.next()) {
+                if (indexName.equalsIgnoreCase(resultSet.getString("INDEX_NAME"))) {
+                    return;
+                }
+            }
+        }
+
+        // Move the bucket behind the player, plane and region, which every area query matches exactly.
+        List<String> columns = new ArrayList<>(keyColumns);
+        columns.remove("bucket");
+        columns.add(3, "bucket");
+        columns.addAll(valueColumns);
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE INDEX " + indexName + " ON " + tableName +
+                              " (" + String.join(", ", columns) + ")");
+        }
+    }
+
+    /**
+     * Returns the sequence number of the last event from the given journal which has been written to the database.
+     * A journal the database hasn't seen before is recorded as written up to its current end, so that switching
+     * databases doesn't replay events which were meant for the old one.
+     */
     @SneakyThrows
-    private synchronized void createDatabase() {
-        Collection<String> skills = new ArrayList<>((Skill.values().length - 1) << 1);
-        for (Skill skill : Arrays.copyOf(Skill.values(), Skill.values().length - 1)) {
-            String s = skill.getName().toLowerCase();
-            skills.add(s);
-            skills.add(s + "_num");
-        }
-
-        // XP Table
-        connection.createStatement().execute("CREATE TABLE IF NOT EXISTS " + tableNameXp +
-                                             """
-                                             (
-                                                 username VARCHAR(50) NOT NULL,
-                                                 x_coord MEDIUMINT UNSIGNED NOT NULL,
-                                                 y_coord MEDIUMINT UNSIGNED NOT NULL,
-                                                 plane TINYINT UNSIGNED NOT NULL,
-                                                 world SMALLINT UNSIGNED NOT NULL,
-                                             """ +
-                                             String.join(" INT UNSIGNED NOT NULL DEFAULT 0, ", skills) +
-                                             " INT UNSIGNED NOT NULL DEFAULT 0, " +
-                                             """
-                                                 PRIMARY KEY (username, x_coord, y_coord, plane, world)
-                                             )
-                                             """);
-
-        // Kill Table
-        connection.createStatement().execute("CREATE TABLE IF NOT EXISTS " + tableNameKills +
-                                             """
-                                             (
-                                                 username VARCHAR(50) NOT NULL,
-                                                 x_coord MEDIUMINT NOT NULL,
-                                                 y_coord MEDIUMINT NOT NULL,
-                                                 plane TINYINT NOT NULL,
-                                                 world SMALLINT UNSIGNED NOT NULL,
-                                                 npc_id INT UNSIGNED NOT NULL,
-                                                 count INT UNSIGNED NOT NULL DEFAULT 0,
-                                                 PRIMARY KEY (username, x_coord, y_coord, plane, world, npc_id)
-                                             )
-                                             """);
-
-        // Loot Table
-        connection.createStatement().execute("CREATE TABLE IF NOT EXISTS " + tableNameLoot +
-                                             """
-                                             (
-                                                 username VARCHAR(320) NOT NULL,
-                                                 npc_id BIGINT UNSIGNED NOT NULL,
-                                                 item_id INT UNSIGNED NOT NULL,
-                                                 quantity INT UNSIGNED NOT NULL,
-                                                 PRIMARY KEY (username, npc_id, item_id)
-                                             )
-                                             """);
+    long registerJournal(UUID journalId, long nextSequence) {
+        this.journalId = journalId;
+
+        Long checkpoint = executeQuery("SELECT sequence FROM " + tableNameJournal + " WHERE journal_id = ?",
+                                       resultSet -> resultSet.next() ? resultSet.getLong(1) : null,
+                                       journalId.toString());
+
+        if (checkpoint != null) {
+            return checkpoint;
+        }
+
+        try (ConnectionPool.PooledConnection pooledConnection = writeConnections.borrow()) {
+            writeJournalCheckpoint(pooledConnection, nextSequence - 1);
+        }
+
+        return nextSequence - 1;
+    }
+
+    /**
+     * Returns the id of the player, recording the player first if they have never been seen before. Ids are cached
+     * for as long as the database configuration stays the same.
+     */
+    private int getOrCreatePlayerId(ConnectionPool.PooledConnection pooledConnection, String username)
+            throws SQLException {
+        Integer playerId = playerIds.get(username);
+
+        if (playerId == null) {
+            PreparedStatement preparedStatement = pooledConnection.prepareStatement(insertPlayerSql);
+            setArguments(preparedStatement, username);
+            preparedStatement.executeUpdate();
+
+            playerId = findPlayerId(pooledConnection, username);
+            playerIds.put(username, playerId);
+        }
+
+        return playerId;
+    }
+
+    /**
+     * Returns the id of the player, or -1 if nothing has ever been recorded for them.
+     */
+    private int findPlayerId(String username) throws SQLException {
+        Integer playerId = playerIds.get(username);
+
+        if (playerId != null) {
+            return playerId;
+        }
+
+        try (ConnectionPool.PooledConnection pooledConnection = readConnections.borrow()) {
+            int foundPlayerId = findPlayerId(pooledConnection, username);
+
+            if (foundPlayerId >= 0) {
+                playerIds.put(username, foundPlayerId);
+            }
+
+            return foundPlayerId;
+        }
+    }
+
+    private int findPlayerId(ConnectionPool.PooledConnection pooledConnection, String username) throws SQLException {
+        PreparedStatement preparedStatement = pooledConnection.prepareStatement(
+                "SELECT player_id FROM " + tableNamePlayers + " WHERE username = ?");
+        setArguments(preparedStatement, username);
+
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            return resultSet.next() ? resultSet.getInt(1) : -1;
+        }
     }
 
+    /**
+     * Adds every buffered total onto the database within a single transaction. If any write fails, the whole buffer is
+     * rolled back.
+     */
+    void writeBuffer(StatisticsBuffer buffer) {
+        writeBuffer(buffer, null);
+    }
+
+    /**
+     * Writes a batch from the outbox. The batch's id is recorded in the same transaction, and a batch whose id has
+     * already been recorded is skipped, so a batch resent after a lost acknowledgement isn't counted twice.
+     */
     @SneakyThrows
-    synchronized void insertKill(Client client, int npcId) {
-        Player player = client.getLocalPlayer();
-        String username = player.getName();
-        WorldPoint location = player.getWorldLocation();
-        int world = client.getWorld();
+    void writeBuffer(StatisticsBuffer buffer, UUID batchId) {
+        try (StatisticsMetrics.Timer timer = metrics.time(metricPrefix + "writeBuffer");
+             ConnectionPool.PooledConnection pooledConnection = writeConnections.borrow()) {
+            // Record any new players up front, so that a rolled back write can't leave a cached id pointing nowhere.
+            for (StatisticsBuffer.KillKey key : buffer.getKills().keySet()) {
+                getOrCreatePlayerId(pooledConnection, key.username());
+            }
+
+            for (StatisticsBuffer.XpKey key : buffer.getXp().keySet()) {
+                getOrCreatePlayerId(pooledConnection, key.username());
+            }
+
+            for (StatisticsBuffer.LootKey key : buffer.getLoot().keySet()) {
+                getOrCreatePlayerId(pooledConnection, key.username());
+            }
+
+            Connection connection = pooledConnection.getConnection();
+            connection.setAutoCommit(false);
+
+            try {
+                if (batchId != null) {
+                    PreparedStatement preparedStatement = pooledConnection.prepareStatement(
+                            insertIgnoreSql + tableNameAppliedBatches + " (batch_id, applied_at) VALUES (?, ?)");
+                    setArguments(preparedStatement, batchId.toString(), System.currentTimeMillis());
+
+                    if (preparedStatement.executeUpdate() == 0) {
+                        log.debug("Skipping batch {}, which has already been applied", batchId);
+                        connection.commit();
+                        return;
+                    }
+                }
+
+                writeKills(pooledConnection, buffer.getKills(), true);
+                writeXp(pooledConnection, buffer.getXp(), true);
+                writeLoot(pooledConnection, buffer.getLoot(), true);
+
+                // Recording the checkpoint in the same transaction means a replayed event is never written twice.
+                if (journalId != null && buffer.getJournalSequence() >= 0) {
+                    writeJournalCheckpoint(pooledConnection, buffer.getJournalSequence());
+                }
+
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                // The cached statements may still hold part of the failed batch, so retire this connection.
+                pooledConnection.invalidate();
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private void writeKills(ConnectionPool.PooledConnection pooledConnection,
+                            Map<StatisticsBuffer.KillKey, Integer> kills, boolean bucketed) throws SQLException {
+        if (kills.isEmpty()) {
+            return;
+        }
+
+        PreparedStatement preparedStatement = pooledConnection.prepareStatement(upsertKillSql);
+        PreparedStatement hourlyStatement = bucketed ? pooledConnection.prepareStatement(upsertKillHourlySql) : null;
+        PreparedStatement clanStatement =
+                bucketed && clanTotals ? pooledConnection.prepareStatement(clanKills.upsertSql()) : null;
+
+        for (Map.Entry<StatisticsBuffer.KillKey, Integer> entry : kills.entrySet()) {
+            StatisticsBuffer.KillKey key = entry.getKey();
+            int playerId = playerIds.get(key.username());
+            int regionId = regionId(key.x(), key.y());
+            setArguments(preparedStatement, playerId, key.plane(), regionId, key.x(), key.y(), key.world(),
+                         key.npcId(), entry.getValue());
+            preparedStatement.addBatch();
+
+            if (hourlyStatement != null) {
+                setArguments(hourlyStatement, playerId, key.hour(), key.plane(), regionId, key.x(), key.y(),
+                             key.world(), key.npcId(), entry.getValue());
+                hourlyStatement.addBatch();
+            }
 
-        String sqlString = "SELECT * FROM " + tableNameKills +
-                           " WHERE username = ? AND x_coord = ? AND y_coord = ? AND plane = ? AND world = ? AND npc_id = ?";
-        Object[] args = {username, location.getX(), location.getY(), location.getPlane(), world, npcId};
-        ResultSet resultSet = executePreparedStatement(sqlString, args);
+            if (clanStatement != null) {
+                setArguments(clanStatement, key.plane(), regionId, key.x(), key.y(), key.world(), key.npcId(),
+                             entry.getValue());
+                clanStatement.addBatch();
+            }
+        }
 
-        if (resultSet.next()) {
-            resultSet.updateInt("count", resultSet.getInt("count") + 1);
-            resultSet.updateRow();
-        } else {
-            resultSet.moveToInsertRow();
+        preparedStatement.executeBatch();
 
-            resultSet.updateString("username", username);
-            resultSet.updateInt("x_coord", location.getX());
-            resultSet.updateInt("y_coord", location.getY());
-            resultSet.updateInt("plane", location.getPlane());
-            resultSet.updateInt("world", world);
-            resultSet.updateInt("npc_id", npcId);
-            resultSet.updateInt("count", 1);
+        if (hourlyStatement != null) {
+            hourlyStatement.executeBatch();
+        }
 
-            resultSet.insertRow();
+        if (clanStatement != null) {
+            clanStatement.executeBatch();
         }
+
+        writeNpcKills(pooledConnection, kills, bucketed && clanTotals);
     }
 
+    /**
+     * Adds the kills onto each player's per-NPC totals, and the clan's if asked to, merging kills of the same NPC on
+     * different tiles first.
+     */
+    private void writeNpcKills(ConnectionPool.PooledConnection pooledConnection,
+                               Map<StatisticsBuffer.KillKey, Integer> kills, boolean clan) throws SQLException {
+        Map<Long, Integer> npcKills = new HashMap<>();
+        Map<Integer, Integer> clanKillsByNpc = new HashMap<>();
+
+        for (Map.Entry<StatisticsBuffer.KillKey, Integer> entry : kills.entrySet()) {
+            long playerId = playerIds.get(entry.getKey().username());
+            npcKills.merge(playerId << 32 | entry.getKey().npcId(), entry.getValue(), Integer::sum);
+            clanKillsByNpc.merge(entry.getKey().npcId(), entry.getValue(), Integer::sum);
+        }
+
+        PreparedStatement preparedStatement = pooledConnection.prepareStatement(upsertNpcKillSql);
+
+        for (Map.Entry<Long, Integer> entry : npcKills.entrySet()) {
+            setArguments(preparedStatement, (int) (entry.getKey() >>> 32), (int) (long) entry.getKey(),
+                         entry.getValue());
+            preparedStatement.addBatch();
+        }
+
+        preparedStatement.executeBatch();
+
+        if (clan) {
+            PreparedStatement clanStatement = pooledConnection.prepareStatement(clanNpcKills.upsertSql());
+
+            for (Map.Entry<Integer, Integer> entry : clanKillsByNpc.entrySet()) {
+                setArguments(clanStatement, entry.getKey(), entry.getValue());
+                clanStatement.addBatch();
+            }
+
+            clanStatement.executeBatch();
+        }
+    }
+
+    private void writeXp(ConnectionPool.PooledConnection pooledConnection,
+                         Map<StatisticsBuffer.XpKey, int[]> xp, boolean bucketed) throws SQLException {
+        if (xp.isEmpty()) {
+            return;
+        }
+
+        PreparedStatement preparedStatement = pooledConnection.prepareStatement(upsertXpSql);
+        PreparedStatement hourlyStatement = bucketed ? pooledConnection.prepareStatement(upsertXpHourlySql) : null;
+        PreparedStatement clanStatement =
+                bucketed && clanTotals ? pooledConnection.prepareStatement(clanXp.upsertSql()) : null;
+
+        for (Map.Entry<StatisticsBuffer.XpKey, int[]> entry : xp.entrySet()) {
+            StatisticsBuffer.XpKey key = entry.getKey();
+            int playerId = playerIds.get(key.username());
+            int[] values = entry.getValue();
+            int regionId = regionId(key.x(), key.y());
+            setArguments(preparedStatement, playerId, key.plane(), regionId, key.x(), key.y(), key.world(),
+                         key.skill().ordinal(), values[0], values[1]);
+            preparedStatement.addBatch();
+
+            if (hourlyStatement != null) {
+                setArguments(hourlyStatement, playerId, key.hour(), key.plane(), regionId, key.x(), key.y(),
+                             key.world(), key.skill().ordinal(), values[0], values[1]);
+                hourlyStatement.addBatch();
+            }
+
+            if (clanStatement != null) {
+                setArguments(clanStatement, key.plane(), regionId, key.x(), key.y(), key.world(),
+                             key.skill().ordinal(), values[0], values[1]);
+                clanStatement.addBatch();
+            }
+        }
+
+        preparedStatement.executeBatch();
+
+        if (hourlyStatement != null) {
+            hourlyStatement.executeBatch();
+        }
+
+        if (clanStatement != null) {
+            clanStatement.executeBatch();
+        }
+    }
+
+    private void writeLoot(ConnectionPool.PooledConnection pooledConnection,
+                           Map<StatisticsBuffer.LootKey, Integer> loot, boolean bucketed) throws SQLException {
+        if (loot.isEmpty()) {
+            return;
+        }
+
+        PreparedStatement preparedStatement = pooledConnection.prepareStatement(upsertLootSql);
+        PreparedStatement hourlyStatement = bucketed ? pooledConnection.prepareStatement(upsertLootHourlySql) : null;
+        PreparedStatement clanStatement =
+                bucketed && clanTotals ? pooledConnection.prepareStatement(clanLoot.upsertSql()) : null;
+
+        for (Map.Entry<StatisticsBuffer.LootKey, Integer> entry : loot.entrySet()) {
+            StatisticsBuffer.LootKey key = entry.getKey();
+            int playerId = playerIds.get(key.username());
+            setArguments(preparedStatement, playerId, key.npcId(), key.itemId(), entry.getValue());
+            preparedStatement.addBatch();
+
+            if (hourlyStatement != null) {
+                setArguments(hourlyStatement, playerId, key.hour(), key.npcId(), key.itemId(), entry.getValue());
+                hourlyStatement.addBatch();
+            }
+
+            if (clanStatement != null) {
+                setArguments(clanStatement, key.npcId(), key.itemId(), entry.getValue());
+                clanStatement.addBatch();
+            }
+        }
+
+        preparedStatement.executeBatch();
+
+        if (hourlyStatement != null) {
+            hourlyStatement.executeBatch();
+        }
+
+        if (clanStatement != null) {
+            clanStatement.executeBatch();
+        }
+    }
+
+    /**
+     * Takes the player's rows in a per-player table off the clan totals, then drops any clan rows left empty. This is
+     * done before the player's rows are replaced, and {@link #addClanTotals} once the new rows are in.
+     */
+    private void subtractClanTotals(ConnectionPool.PooledConnection pooledConnection, ClanTable clanTable,
+                                    int playerId) throws SQLException {
+        PreparedStatement preparedStatement = pooledConnection.prepareStatement(clanTable.subtractSql());
+        setArguments(preparedStatement, Collections.nCopies(clanTable.subtractPlaceholders(), playerId).toArray());
+        preparedStatement.executeUpdate();
+
+        pooledConnection.prepareStatement(clanTable.pruneSql()).executeUpdate();
+    }
+
+    /**
+     * Adds the player's rows in a per-player table onto the clan totals.
+     */
+    private void addClanTotals(ConnectionPool.PooledConnection pooledConnection, ClanTable clanTable, int playerId)
+            throws SQLException {
+        PreparedStatement preparedStatement = pooledConnection.prepareStatement(clanTable.addSql());
+        setArguments(preparedStatement, playerId);
+        preparedStatement.executeUpdate();
+    }
+
+    private ClanTable findClanTable(String playerTableName) {
+        for (ClanTable clanTable : List.of(clanKills, clanNpcKills, clanXp, clanLoot)) {
+            if (clanTable.playerTableName().equals(playerTableName)) {
+                return clanTable;
+            }
+        }
+
+        return null;
+    }
+
+    private void writeJournalCheckpoint(ConnectionPool.PooledConnection pooledConnection, long sequence)
+            throws SQLException {
+        // Never move the checkpoint backwards, as an older writer may still be finishing up after being replaced.
+        PreparedStatement preparedStatement = pooledConnection.prepareStatement(
+                "UPDATE " + tableNameJournal + " SET sequence = ? WHERE journal_id = ? AND sequence < ?");
+        setArguments(preparedStatement, sequence, journalId.toString(), sequence);
+
+        if (preparedStatement.executeUpdate() == 0) {
+            preparedStatement = pooledConnection.prepareStatement(
+                    insertIgnoreSql + tableNameJournal + " (journal_id, sequence) VALUES (?, ?)");
+            setArguments(preparedStatement, journalId.toString(), sequence);
+            preparedStatement.executeUpdate();
+        }
+    }
+
+    /**
+     * Reads every all-time total recorded for the player. The returned rows have no hour, so they can only be passed
+     * to {@link #replacePlayerTotals}.
+     */
     @SneakyThrows
-    synchronized void insertXp(Client client, String skillName, int delta) {
-        Player player = client.getLocalPlayer();
-        String name = player.getName();
-        WorldPoint location = player.getWorldLocation();
+    StatisticsBuffer retrievePlayerTotals(String username) {
+        StatisticsBuffer buffer = new StatisticsBuffer();
+        int playerId = findPlayerId(username);
 
-        String sqlString = "SELECT * FROM " + tableNameXp + " WHERE username = ? AND x_coord = ? AND y_coord = ? AND plane = ?";
-        Object[] args = {name, location.getX(), location.getY(), location.getPlane()};
-        ResultSet resultSet = executePreparedStatement(sqlString, args);
+        if (playerId < 0) {
+            return buffer;
+        }
+
+        forEachRow("SELECT x_coord, y_coord, plane, world, npc_id, count FROM " + tableNameKills +
+                   " WHERE player_id = ?",
+                   row -> buffer.addKills(new StatisticsBuffer.KillKey(username, row.getInt(1), row.getInt(2),
+                                                                       row.getInt(3), row.getInt(4), row.getInt(5),
+                                                                       -1),
+                                          row.getInt(6)),
+                   playerId);
+
+        forEachRow("SELECT x_coord, y_coord, plane, world, skill_id, xp, count FROM " + tableNameXp +
+                   " WHERE player_id = ?",
+                   row -> buffer.addXp(new StatisticsBuffer.XpKey(username, row.getInt(1), row.getInt(2),
+                                                                  row.getInt(3), row.getInt(4),
+                                                                  Skill.values()[row.getInt(5)], -1),
+                                       row.getInt(6), row.getInt(7)),
+                   playerId);
 
-        if (resultSet.next()) {
-            resultSet.updateInt(skillName.toLowerCase(), resultSet.getInt(skillName) + delta);
-            resultSet.updateInt(skillName.toLowerCase() + "_num", resultSet.getInt(skillName + "_num") + 1);
-            resultSet.updateRow();
-        } else {
-            resultSet.moveToInsertRow();
+        forEachRow("SELECT npc_id, item_id, quantity FROM " + tableNameLoot + " WHERE player_id = ?",
+                   row -> buffer.addLoot(new StatisticsBuffer.LootKey(username, row.getInt(1), row.getInt(2), -1),
+                                         row.getInt(3)),
+                   playerId);
 
-            resultSet.updateString("username", name);
-            resultSet.updateInt("x_coord", location.getX());
-            resultSet.updateInt("y_coord", location.getY());
-            resultSet.updateInt("plane", location.getPlane());
-            resultSet.updateInt("world", client.getWorld());
-            resultSet.updateInt(skillName.toLowerCase(), delta);
-            resultSet.updateInt(skillName.toLowerCase() + "_num", 1);
+        return buffer;
+    }
+
+    /**
+     * Reads the player's hourly rows from the given hour onwards.
+     */
+    @SneakyThrows
+    StatisticsBuffer retrievePlayerHours(String username, int fromHour) {
+        StatisticsBuffer buffer = new StatisticsBuffer();
+        int playerId = findPlayerId(username);
 
-            resultSet.insertRow();
+        if (playerId < 0) {
+            return buffer;
         }
+
+        forEachRow("SELECT x_coord, y_coord, plane, world, npc_id, bucket, count FROM " +
+                   TimeBucket.HOURLY.tableName(tableNameKills) + " WHERE player_id = ? AND bucket >= ?",
+                   row -> buffer.addKills(new StatisticsBuffer.KillKey(username, row.getInt(1), row.getInt(2),
+                                                                       row.getInt(3), row.getInt(4), row.getInt(5),
+                                                                       row.getInt(6)),
+                                          row.getInt(7)),
+                   playerId, fromHour);
+
+        forEachRow("SELECT x_coord, y_coord, plane, world, skill_id, bucket, xp, count FROM " +
+                   TimeBucket.HOURLY.tableName(tableNameXp) + " WHERE player_id = ? AND bucket >= ?",
+                   row -> buffer.addXp(new StatisticsBuffer.XpKey(username, row.getInt(1), row.getInt(2),
+                                                                  row.getInt(3), row.getInt(4),
+                                                                  Skill.values()[row.getInt(5)], row.getInt(6)),
+                                       row.getInt(7), row.getInt(8)),
+                   playerId, fromHour);
+
+        forEachRow("SELECT npc_id, item_id, bucket, quantity FROM " + TimeBucket.HOURLY.tableName(tableNameLoot) +
+                   " WHERE player_id = ? AND bucket >= ?",
+                   row -> buffer.addLoot(new StatisticsBuffer.LootKey(username, row.getInt(1), row.getInt(2),
+                                                                      row.getInt(3)),
+                                         row.getInt(4)),
+                   playerId, fromHour);
+
+        return buffer;
+    }
+
+    /**
+     * Replaces every all-time total recorded for the player with the given ones, and their hourly rows from the given
+     * hour onwards with the given hourly rows, in a single transaction. The hourly rows must already be counted in
+     * the totals, as they are in the database they were read from.
+     */
+    void replacePlayerTotals(String username, StatisticsBuffer totals, int fromHour, StatisticsBuffer hours) {
+        // The hourly rows add themselves onto the totals again as they are written.
+        StatisticsBuffer earlierTotals = new StatisticsBuffer();
+        addTotals(earlierTotals, totals, 1);
+        addTotals(earlierTotals, hours, -1);
+
+        replacePlayerRows(username, true, earlierTotals, fromHour, hours);
+    }
+
+    /**
+     * Replaces the player's hourly rows from the given hour onwards with the given ones, and moves their all-time
+     * totals on by the difference, in a single transaction.
+     */
+    void replacePlayerHours(String username, int fromHour, StatisticsBuffer hours) {
+        // Taking off the hourly rows being replaced leaves the new ones to add themselves on as they are written.
+        StatisticsBuffer replacedHours = new StatisticsBuffer();
+        addTotals(replacedHours, retrievePlayerHours(username, fromHour), -1);
+
+        replacePlayerRows(username, false, replacedHours, fromHour, hours);
+    }
+
+    /**
+     * Adds the rows of one buffer onto the all-time totals of another, multiplied by the given sign.
+     */
+    private static void addTotals(StatisticsBuffer buffer, StatisticsBuffer rows, int sign) {
+        rows.getKills().forEach((key, count) -> buffer.addKills(
+                new StatisticsBuffer.KillKey(key.username(), key.x(), key.y(), key.plane(), key.world(), key.npcId(),
+                                             -1),
+                sign * count));
+        rows.getXp().forEach((key, values) -> buffer.addXp(
+                new StatisticsBuffer.XpKey(key.username(), key.x(), key.y(), key.plane(), key.world(), key.skill(),
+                                           -1),
+                sign * values[0], sign * values[1]));
+        rows.getLoot().forEach((key, quantity) -> buffer.addLoot(
+                new StatisticsBuffer.LootKey(key.username(), key.npcId(), key.itemId(), -1), sign * quantity));
     }
 
+    /**
+     * Deletes the player's hourly rows from the given hour onwards, and their all-time totals if asked to, then adds
+     * the given all-time totals and hourly rows. Hourly rows add themselves onto the all-time totals as they are
+     * written.
+     */
     @SneakyThrows
-    synchronized void insertLoot(String username, int npcId, ItemStack itemStack) {
-        String sqlString = "SELECT * FROM " + tableNameLoot + " WHERE username = ? AND npc_id = ? AND item_id = ?";
-        Object[] args = {username, npcId, itemStack.getId()};
-        ResultSet resultSet = executePreparedStatement(sqlString, args);
+    private void replacePlayerRows(String username, boolean replaceTotals, StatisticsBuffer totals, int fromHour,
+                                   StatisticsBuffer hours) {
+        // Hourly rows are written the same way as new statistics, which would also add them onto the clan totals.
+        if (clanTotals) {
+            throw new IllegalStateException("Totals can only be replaced in the local replica");
+        }
+
+        try (StatisticsMetrics.Timer timer = metrics.time(metricPrefix + "replacePlayerTotals");
+             ConnectionPool.PooledConnection pooledConnection = writeConnections.borrow()) {
+            int playerId = getOrCreatePlayerId(pooledConnection, username);
+            Connection connection = pooledConnection.getConnection();
+            connection.setAutoCommit(false);
+
+            try {
+                if (replaceTotals) {
+                    for (String tableName : List.of(tableNameKills, tableNameNpcKills, tableNameXp, tableNameLoot)) {
+                        PreparedStatement preparedStatement = pooledConnection.prepareStatement(
+                                "DELETE FROM " + tableName + " WHERE player_id = ?");
+                        setArguments(preparedStatement, playerId);
+                        preparedStatement.executeUpdate();
+                    }
+                }
+
+                for (String tableName : List.of(tableNameKills, tableNameXp, tableNameLoot)) {
+                    PreparedStatement preparedStatement = pooledConnection.prepareStatement(
+                            "DELETE FROM " + TimeBucket.HOURLY.tableName(tableName) +
+                            " WHERE player_id = ? AND bucket >= ?");
+                    setArguments(preparedStatement, playerId, fromHour);
+                    preparedStatement.executeUpdate();
+                }
 
-        if (resultSet.next()) {
-            resultSet.updateInt("quantity", resultSet.getInt("quantity") + itemStack.getQuantity());
-            resultSet.updateRow();
-        } else {
-            resultSet.moveToInsertRow();
+                writeKills(pooledConnection, totals.getKills(), false);
+                writeXp(pooledConnection, totals.getXp(), false);
+                writeLoot(pooledConnection, totals.getLoot(), false);
+                writeKills(pooledConnection, hours.getKills(), true);
+                writeXp(pooledConnection, hours.getXp(), true);
+                writeLoot(pooledConnection, hours.getLoot(), true);
 
-            System.out.printf("npcId: %d\n", npcId);
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                pooledConnection.invalidate();
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
 
-            resultSet.updateString("username", username);
-            resultSet.updateInt("npc_id", npcId);
-            resultSet.updateInt("item_id", itemStack.getId());
-            resultSet.updateInt("quantity", itemStack.getQuantity());
+    /**
+     * Returns how up to date the local replica's copy of the player's totals is, or null if it has never been copied.
+     */
+    @SneakyThrows
+    ReplicaSync retrieveReplicaSync(String username) {
+        return executeQuery("SELECT copied_hour, synced_hour FROM " + tableNameReplicaSync + " WHERE username = ?",
+                            resultSet -> resultSet.next() ? new ReplicaSync(resultSet.getInt(1), resultSet.getInt(2))
+                                                          : null,
+                            username);
+    }
 
-            resultSet.insertRow();
+    @SneakyThrows
+    void writeReplicaSync(String username, ReplicaSync sync) {
+        try (ConnectionPool.PooledConnection pooledConnection = writeConnections.borrow()) {
+            // The replica is always SQLite.
+            PreparedStatement preparedStatement = pooledConnection.prepareStatement(
+                    "INSERT OR REPLACE INTO " + tableNameReplicaSync +
+                    " (username, copied_hour, synced_hour) VALUES (?, ?, ?)");
+            setArguments(preparedStatement, username, sync.copiedHour(), sync.syncedHour());
+            preparedStatement.executeUpdate();
         }
     }
 
+    /**
+     * Forgets every copy made to the local replica, so that each player's totals are next copied in full.
+     */
     @SneakyThrows
-    Map<WorldPoint, Map<Integer, Integer>> retrieveKillMap(Actor player, boolean nearby) {
-        WorldPoint point = player.getWorldLocation();
+    void clearReplicaSync() {
+        try (ConnectionPool.PooledConnection pooledConnection = writeConnections.borrow()) {
+            pooledConnection.prepareStatement("DELETE FROM " + tableNameReplicaSync).executeUpdate();
+        }
+    }
 
-        String sqlString = "SELECT * FROM " + tableNameKills + " WHERE username = ? AND plane = ?" +
-                           (nearby ? " AND x_coord >= ? AND x_coord <= ? AND y_coord >= ? AND y_coord <= ?"
-                                   : "");
-        Object[] args = nearby
-                        ? new Object[]{player.getName(), point.getPlane(), point.getX() - 45, point.getX() + 45, point.getY() - 45, point.getY() + 45}
-                        : new Object[]{player.getName(), point.getPlane()};
-        ResultSet resultSet = executePreparedStatement(sqlString, args);
+    private void createReplicaSyncTable() throws SQLException {
+        try (ConnectionPool.PooledConnection pooledConnection = writeConnections.borrow();
+             Statement statement = pooledConnection.getConnection().createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameReplicaSync +
+                              """
+                              (
+                                  username VARCHAR(50) NOT NULL PRIMARY KEY,
+                                  copied_hour INT NOT NULL,
+                                  synced_hour INT NOT NULL
+                              )
+                              """);
+        }
+    }
 
-        Map<WorldPoint, Map<Integer, Integer>> outerMap = new HashMap<>();
+    /**
+     * Moves hourly rows into the daily tables once they are more than {@link #HOURLY_RETENTION_DAYS} whole days old.
+     * Rows are moved a day at a time, so a day is only ever held in one of the two tables. The ids of batches applied
+     * long enough ago to never be sent again are dropped at the same time.
+     */
+    @SneakyThrows
+    void rollUp() {
+        int cutoff = (TimeBucket.DAILY.of(System.currentTimeMillis()) - HOURLY_RETENTION_DAYS) *
+                     TimeBucket.HOURS_PER_DAY;
 
-        while (resultSet.next()) {
-            int xCoord = resultSet.getInt("x_coord");
-            int yCoord = resultSet.getInt("y_coord");
-            int plane = resultSet.getInt("plane");
-            point = new WorldPoint(xCoord, yCoord, plane);
-            int npcId = resultSet.getInt("npc_id");
-            int count = resultSet.getInt("count");
-            Map<Integer, Integer> innerMap = new HashMap<>();
+        try (StatisticsMetrics.Timer timer = metrics.time(metricPrefix + "rollUp");
+             ConnectionPool.PooledConnection pooledConnection = writeConnections.borrow()) {
+            Connection connection = pooledConnection.getConnection();
+            connection.setAutoCommit(false);
 
-            innerMap.put(npcId, count);
-            outerMap.put(point, innerMap);
+            try {
+                for (String sqlString : rollUpSql) {
+                    PreparedStatement preparedStatement = pooledConnection.prepareStatement(sqlString);
+                    setArguments(preparedStatement, cutoff);
+                    preparedStatement.executeUpdate();
+                }
+
+                PreparedStatement preparedStatement = pooledConnection.prepareStatement(
+                        "DELETE FROM " + tableNameAppliedBatches + " WHERE applied_at < ?");
+                setArguments(preparedStatement, System.currentTimeMillis() - APPLIED_BATCH_RETENTION_MS);
+                preparedStatement.executeUpdate();
+
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
         }
+    }
 
-        return outerMap;
+    /**
+     * Hands each of the player's rows in a snapshot table to the handler, in primary key order, with its columns in
+     * the order of {@link SnapshotTable#columns()}.
+     */
+    @SneakyThrows
+    void exportSnapshotRows(String username, SnapshotTable table, RowHandler handler) {
+        int playerId = findPlayerId(username);
+
+        if (playerId < 0) {
+            return;
+        }
+
+        try (StatisticsMetrics.Timer timer = metrics.time(metricPrefix + "exportSnapshotRows")) {
+            forEachRow("SELECT " + String.join(", ", table.columns()) + " FROM " + tablePrefix + table.name() +
+                       " WHERE player_id = ? ORDER BY " + String.join(", ", table.keyColumns()), handler, playerId);
+        }
     }
 
+    /**
+     * Replaces the player's rows in every table held by the snapshot with the snapshot's rows, returning the number
+     * of rows imported. Rows are written in batches of a block and committed every {@link #IMPORT_COMMIT_ROWS} rows,
+     * so a failed import leaves some tables partly replaced, and can simply be run again.
+     */
     @SneakyThrows
-    Map<Integer, Map<Integer, Integer>> retrieveLootMap(String username) {
-        String sqlString = "SELECT * FROM " + tableNameLoot + " WHERE username = ?";
-        Object[] args = {username};
-        ResultSet resultSet = executePreparedStatement(sqlString, args);
+    long importSnapshot(String username, StatisticsArchive.Reader reader) {
+        try (StatisticsMetrics.Timer timer = metrics.time(metricPrefix + "importSnapshot");
+             ConnectionPool.PooledConnection pooledConnection = writeConnections.borrow()) {
+            int playerId = getOrCreatePlayerId(pooledConnection, username);
+            Connection connection = pooledConnection.getConnection();
+            connection.setAutoCommit(false);
+
+            try {
+                long importedRows = 0;
+                int uncommittedRows = 0;
+                SnapshotTable table;
+
+                while ((table = reader.nextTable()) != null) {
+                    String tableName = tablePrefix + table.name();
+                    // Clan totals are adjusted alongside each block, so that every commit leaves them consistent.
+                    ClanTable clanTable = clanTotals ? findClanTable(tableName) : null;
+
+                    if (clanTable != null) {
+                        subtractClanTotals(pooledConnection, clanTable, playerId);
+                    }
 
-        Map<Integer, Map<Integer, Integer>> map = new HashMap<>();
+                    PreparedStatement deleteStatement = pooledConnection.prepareStatement(
+                            "DELETE FROM " + tableName + " WHERE player_id = ?");
+                    setArguments(deleteStatement, playerId);
+                    deleteStatement.executeUpdate();
 
-        while (resultSet.next()) {
-            int npcId = resultSet.getInt("npc_id");
-            int itemId = resultSet.getInt("item_id");
-            int quantity = resultSet.getInt("quantity");
+                    PreparedStatement preparedStatement =
+                            pooledConnection.prepareStatement(snapshotUpsertSql.get(table.name()));
+                    PreparedStatement clanStatement =
+                            clanTable != null ? pooledConnection.prepareStatement(clanTable.upsertSql()) : null;
+                    int numColumns = table.columns().size();
+                    int rows;
+
+                    while ((rows = reader.nextBlock()) > 0) {
+                        for (int row = 0; row < rows; row++) {
+                            preparedStatement.setInt(1, playerId);
+
+                            for (int column = 0; column < numColumns; column++) {
+                                preparedStatement.setLong(column + 2, reader.getColumn(column)[row]);
+                            }
+
+                            preparedStatement.addBatch();
+
+                            if (clanStatement != null) {
+                                for (int column = 0; column < numColumns; column++) {
+                                    clanStatement.setLong(column + 1, reader.getColumn(column)[row]);
+                                }
+
+                                clanStatement.addBatch();
+                            }
+                        }
+
+                        preparedStatement.executeBatch();
+
+                        if (clanStatement != null) {
+                            clanStatement.executeBatch();
+                        }
+
+                        importedRows += rows;
+                        uncommittedRows += rows;
+
+                        if (uncommittedRows >= IMPORT_COMMIT_ROWS) {
+                            connection.commit();
+                            uncommittedRows = 0;
+                        }
+                    }
+                }
+
+                // The per-NPC totals aren't held in snapshots, as they can be rebuilt from the kills.
+                if (clanTotals) {
+                    subtractClanTotals(pooledConnection, clanNpcKills, playerId);
+                }
 
-            Map<Integer, Integer> innerMap = new HashMap<>();
+                PreparedStatement deleteStatement = pooledConnection.prepareStatement(
+                        "DELETE FROM " + tableNameNpcKills + " WHERE player_id = ?");
+                setArguments(deleteStatement, playerId);
+                deleteStatement.executeUpdate();
 
-            innerMap.put(itemId, quantity);
-            map.put(npcId, innerMap);
+                PreparedStatement summaryStatement = pooledConnection.prepareStatement(
+                        "INSERT INTO " + tableNameNpcKills + " (player_id, npc_id, count)" +
+                        " SELECT player_id, npc_id, SUM(count) FROM " + tableNameKills +
+                        " WHERE player_id = ? GROUP BY player_id, npc_id");
+                setArguments(summaryStatement, playerId);
+                summaryStatement.executeUpdate();
+
+                if (clanTotals) {
+                    addClanTotals(pooledConnection, clanNpcKills, playerId);
+                }
+
+                connection.commit();
+                return importedRows;
+            } catch (SQLException | IOException | RuntimeException e) {
+                pooledConnection.invalidate();
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    @SneakyThrows
+    TileStore retrieveKillMap(String username, int plane) {
+        int playerId = findPlayerId(username);
+
+        if (playerId < 0) {
+            return TileStore.forKills();
+        }
+
+        String sqlString = "SELECT " + KILL_PROJECTION + " FROM " + tableNameKills +
+                           " WHERE player_id = ? AND plane = ?";
+
+        return retrieveKillMap(sqlString, playerId, plane);
+    }
+
+    @SneakyThrows
+    TileStore retrieveKillMap(String username, int plane, int minX, int minY, int maxX, int maxY) {
+        int playerId = findPlayerId(username);
+
+        if (playerId < 0) {
+            return TileStore.forKills();
         }
 
-        return map;
+        List<Object> args = new ArrayList<>(List.of(playerId));
+        String sqlString = "SELECT " + KILL_PROJECTION + " FROM " + tableNameKills + " WHERE player_id = ? AND " +
+                           areaFilter(args, plane, minX, minY, maxX, maxY);
+
+        return retrieveKillMap(sqlString, args.toArray());
     }
 
+    /**
+     * Returns the kills within the given area between two times. Days which have already been rolled up can't be
+     * split into hours, so a range which starts or ends part way through one of those days includes the whole day.
+     */
     @SneakyThrows
-    Map<WorldPoint, EnumMap<Skill, Integer[]>> retrieveXpMap(Actor player) {
-        WorldPoint point = player.getWorldLocation();
+    TileStore retrieveKillMap(String username, int plane, int minX, int minY, int maxX, int maxY, Instant from,
+                              Instant to) {
+        int playerId = findPlayerId(username);
+
+        if (playerId < 0) {
+            return TileStore.forKills();
+        }
+
+        List<Object> filterArgs = new ArrayList<>();
+        String sqlString = bucketedSelect(tableNameKills, "x_coord, y_coord, plane, npc_id", List.of("count"),
+                                          areaFilter(filterArgs, plane, minX, minY, maxX, maxY));
 
-        String sqlString = "SELECT * FROM " + tableNameXp +
-                           " WHERE username = ? AND x_coord >= ? AND x_coord <= ? AND y_coord >= ? AND y_coord <= ? AND plane = ?";
-        Object[] args = {player.getName(), point.getX() - 45, point.getX() + 45, point.getY() - 45, point.getY() + 45, point.getPlane()};
-        ResultSet resultSet = executePreparedStatement(sqlString, args);
+        return retrieveKillMap(sqlString, bucketedArguments(playerId, from, to, filterArgs.toArray()));
+    }
 
-        Map<WorldPoint, EnumMap<Skill, Integer[]>> map = new HashMap<>();
+    /**
+     * Returns the kills of every player together within the given area.
+     */
+    @SneakyThrows
+    TileStore retrieveClanKillMap(int plane, int minX, int minY, int maxX, int maxY) {
+        List<Object> args = new ArrayList<>();
+        String sqlString = "SELECT " + KILL_PROJECTION + " FROM " + tableNameClanKills + " WHERE " +
+                           areaFilter(args, plane, minX, minY, maxX, maxY);
 
-        while (resultSet.next()) {
-            int xCoord = resultSet.getInt("x_coord");
-            int yCoord = resultSet.getInt("y_coord");
-            int plane = resultSet.getInt("plane");
+        return retrieveKillMap(sqlString, args.toArray());
+    }
 
-            point = new WorldPoint(xCoord, yCoord, plane);
+    private TileStore retrieveKillMap(String sqlString, Object ... args) throws SQLException {
+        try (StatisticsMetrics.Timer timer = metrics.time(metricPrefix + "retrieveKillMap")) {
+            TileStore tiles = TileStore.forKills();
 
-            EnumMap<Skill, Integer[]> skillXpMap = new EnumMap<>(Skill.class);
+            // Columns are read by position, in the order of KILL_PROJECTION.
+            forEachRow(sqlString, row -> {
+                int npcId = row.getInt(4);
+                int count = row.getInt(5);
+                int index = tiles.getOrAdd(TileStore.pack(row.getInt(1), row.getInt(2), row.getInt(3)));
 
-            // For every skill except for Skill.OVERALL, fill the inner map with XP data from resultSet.
-            for (int x = 0; x < Skill.values().length - 1; x++) {
-                String skillName = Skill.values()[x].getName();
-                int skillXp = resultSet.getInt(skillName);
-                int skillXpOccurrences = resultSet.getInt(skillName + "_num");
+                // The single channel holds the tile's total, and the details break it down by NPC.
+                tiles.add(index, 0, count);
+                tiles.addDetail(index, npcId, count);
+            }, args);
 
-                skillXpMap.put(Skill.values()[x], new Integer[] {skillXp, skillXpOccurrences});
+            return tiles;
+        }
+    }
+
+    @SneakyThrows
+    Map<Integer, Map<Integer, Integer>> retrieveLootMap(String username) {
+        int playerId = findPlayerId(username);
+
+        if (playerId < 0) {
+            return new HashMap<>();
+        }
+
+        String sqlString = "SELECT npc_id, item_id, quantity FROM " + tableNameLoot + " WHERE player_id = ?";
+
+        return retrieveLootMap(sqlString, playerId);
+    }
+
+    /**
+     * Returns the loot received between two times, widened to whole days in the same way as the kill map.
+     */
+    @SneakyThrows
+    Map<Integer, Map<Integer, Integer>> retrieveLootMap(String username, Instant from, Instant to) {
+        int playerId = findPlayerId(username);
+
+        if (playerId < 0) {
+            return new HashMap<>();
+        }
+
+        String sqlString = bucketedSelect(tableNameLoot, "npc_id, item_id", List.of("quantity"), "");
+
+        return retrieveLootMap(sqlString, bucketedArguments(playerId, from, to));
+    }
+
+    private Map<Integer, Map<Integer, Integer>> retrieveLootMap(String sqlString, Object ... args)
+            throws SQLException {
+        try (StatisticsMetrics.Timer timer = metrics.time(metricPrefix + "retrieveLootMap")) {
+            Map<Integer, Map<Integer, Integer>> map = new HashMap<>();
+
+            forEachRow(sqlString, row -> map.computeIfAbsent(row.getInt(1), key -> new HashMap<>())
+                                            .put(row.getInt(2), row.getInt(3)), args);
+
+            return map;
+        }
+    }
+
+    /**
+     * Returns the player's total kills of one NPC and everything it has dropped for them.
+     */
+    @SneakyThrows
+    NpcSummary retrieveNpcSummary(String username, int npcId) {
+        try (StatisticsMetrics.Timer timer = metrics.time(metricPrefix + "retrieveNpcSummary")) {
+            int playerId = findPlayerId(username);
+
+            if (playerId < 0) {
+                return new NpcSummary(npcId, 0, Map.of());
             }
 
-            map.put(point, skillXpMap);
+            return retrieveNpcSummary(npcId,
+                                      "SELECT count FROM " + tableNameNpcKills + " WHERE player_id = ? AND npc_id = ?",
+                                      "SELECT item_id, quantity FROM " + tableNameLoot +
+                                      " WHERE player_id = ? AND npc_id = ?",
+                                      playerId, npcId);
         }
+    }
+
+    /**
+     * Returns every player's total kills of one NPC and everything it has dropped for them.
+     */
+    @SneakyThrows
+    NpcSummary retrieveClanNpcSummary(int npcId) {
+        try (StatisticsMetrics.Timer timer = metrics.time(metricPrefix + "retrieveClanNpcSummary")) {
+            return retrieveNpcSummary(npcId, "SELECT count FROM " + tableNameClanNpcKills + " WHERE npc_id = ?",
+                                      "SELECT item_id, quantity FROM " + tableNameClanLoot + " WHERE npc_id = ?",
+                                      npcId);
+        }
+    }
+
+    private NpcSummary retrieveNpcSummary(int npcId, String killsSql, String lootSql, Object ... args)
+            throws SQLException {
+        int kills = executeQuery(killsSql, resultSet -> resultSet.next() ? resultSet.getInt(1) : 0, args);
+        Map<Integer, Integer> loot = new HashMap<>();
+
+        forEachRow(lootSql, row -> loot.put(row.getInt(1), row.getInt(2)), args);
+
+        return new NpcSummary(npcId, kills, loot);
+    }
+
+    @SneakyThrows
+    TileStore retrieveXpMap(String username, int plane, int minX, int minY, int maxX, int maxY) {
+        int playerId = findPlayerId(username);
+
+        if (playerId < 0) {
+            return TileStore.forXp();
+        }
+
+        List<Object> args = new ArrayList<>(List.of(playerId));
+        String sqlString = "SELECT " + XP_PROJECTION + " FROM " + tableNameXp +
+                           " WHERE player_id = ? AND " + areaFilter(args, plane, minX, minY, maxX, maxY);
+
+        return retrieveXpMap(sqlString, args.toArray());
+    }
+
+    /**
+     * Returns the XP gained within the given area between two times, widened to whole days in the same way as the
+     * kill map.
+     */
+    @SneakyThrows
+    TileStore retrieveXpMap(String username, int plane, int minX, int minY, int maxX, int maxY, Instant from,
+                            Instant to) {
+        int playerId = findPlayerId(username);
 
-        return map;
+        if (playerId < 0) {
+            return TileStore.forXp();
+        }
+
+        List<Object> filterArgs = new ArrayList<>();
+        String sqlString = bucketedSelect(tableNameXp, "x_coord, y_coord, plane, skill_id", List.of("xp", "count"),
+                                          areaFilter(filterArgs, plane, minX, minY, maxX, maxY));
+
+        return retrieveXpMap(sqlString, bucketedArguments(playerId, from, to, filterArgs.toArray()));
     }
 
+    /**
+     * Returns the XP gained by every player together within the given area.
+     */
     @SneakyThrows
-    synchronized ResultSet executePreparedStatement(String sqlString, Object ... args) {
-        System.out.println(sqlString);
-        System.out.println(args);
-        try (PreparedStatement preparedStatement = connection.prepareStatement(sqlString,
-                                                                          ResultSet.TYPE_SCROLL_INSENSITIVE,
-                                                                          ResultSet.CONCUR_UPDATABLE)) {
-            for (int x = 0; x < args.length; x++) {
-                if (args[x] instanceof Integer intArg) {
-                    preparedStatement.setInt(x + 1, intArg);
-                } else if (args[x] instanceof String strArg) {
-                    preparedStatement.setString(x + 1, strArg);
+    TileStore retrieveClanXpMap(int plane, int minX, int minY, int maxX, int maxY) {
+        List<Object> args = new ArrayList<>();
+        String sqlString = "SELECT " + XP_PROJECTION + " FROM " + tableNameClanXp + " WHERE " +
+                           areaFilter(args, plane, minX, minY, maxX, maxY);
+
+        return retrieveXpMap(sqlString, args.toArray());
+    }
+
+    private TileStore retrieveXpMap(String sqlString, Object ... args) throws SQLException {
+        try (StatisticsMetrics.Timer timer = metrics.time(metricPrefix + "retrieveXpMap")) {
+            TileStore tiles = TileStore.forXp();
+
+            // Columns are read by position, in the order of XP_PROJECTION.
+            forEachRow(sqlString, row -> {
+                Skill skill = Skill.values()[row.getInt(4)];
+                int index = tiles.getOrAdd(TileStore.pack(row.getInt(1), row.getInt(2), row.getInt(3)));
+
+                tiles.add(index, TileStore.xpChannel(skill, false), row.getInt(5));
+                tiles.add(index, TileStore.xpChannel(skill, true), row.getInt(6));
+            }, args);
+
+            return tiles;
+        }
+    }
+
+    /**
+     * Builds a filter selecting the tiles within an area, adding its parameters to the given list. The area is
+     * matched by region first, so that the query seeks to each region's rows rather than scanning a column range.
+     */
+    private static String areaFilter(List<Object> args, int plane, int minX, int minY, int maxX, int maxY) {
+        List<String> placeholders = new ArrayList<>();
+        args.add(plane);
+
+        for (int regionX = minX >> REGION_SHIFT; regionX <= maxX >> REGION_SHIFT; regionX++) {
+            for (int regionY = minY >> REGION_SHIFT; regionY <= maxY >> REGION_SHIFT; regionY++) {
+                placeholders.add("?");
+                args.add(regionX << 8 | regionY);
+            }
+        }
+
+        args.addAll(List.of(minX, maxX, minY, maxY));
+
+        return "plane = ? AND region_id IN (" + String.join(", ", placeholders) + ")" +
+               " AND x_coord >= ? AND x_coord <= ? AND y_coord >= ? AND y_coord <= ?";
+    }
+
+    /**
+     * Returns the id of the 64x64 region holding a tile, numbered the same way as the game numbers its regions.
+     */
+    private static int regionId(int x, int y) {
+        return (x >> REGION_SHIFT) << 8 | y >> REGION_SHIFT;
+    }
+
+    /**
+     * Builds a query which totals the given columns across the daily and hourly tables. Each day is held in only one
+     * of the two tables, so reading the coarsest rows available never counts anything twice. The query's parameters
+     * are given by {@link #bucketedArguments}.
+     */
+    private static String bucketedSelect(String tableName, String groupColumns, List<String> sumColumns,
+                                         String filter) {
+        String columns = groupColumns + ", " + String.join(", ", sumColumns);
+        String where = " WHERE player_id = ? AND bucket >= ? AND bucket < ?" +
+                       (filter.isEmpty() ? "" : " AND " + filter);
+
+        return "SELECT " + groupColumns + ", " +
+               sumColumns.stream()
+                         .map(column -> "SUM(" + column + ") AS " + column)
+                         .collect(Collectors.joining(", ")) +
+               " FROM (SELECT " + columns + " FROM " + TimeBucket.DAILY.tableName(tableName) + where +
+               " UNION ALL SELECT " + columns + " FROM " + TimeBucket.HOURLY.tableName(tableName) + where +
+               ") buckets GROUP BY " + groupColumns;
+    }
+
+    private static Object[] bucketedArguments(int playerId, Instant from, Instant to, Object ... filterArgs) {
+        List<Object> args = new ArrayList<>();
+
+        for (TimeBucket bucket : List.of(TimeBucket.DAILY, TimeBucket.HOURLY)) {
+            args.add(playerId);
+            args.add(bucket.floor(from));
+            args.add(bucket.ceiling(to));
+            args.addAll(Arrays.asList(filterArgs));
+        }
+
+        return args.toArray();
+    }
+
+    /**
+     * Runs the query on a pooled connection and hands its results to the handler. The result set is closed once the
+     * handler returns, so the handler must not hold onto it.
+     */
+    <T> T executeQuery(String sqlString, ResultSetHandler<T> handler, Object ... args) throws SQLException {
+        try (ConnectionPool.PooledConnection pooledConnection = readConnections.borrow()) {
+            PreparedStatement preparedStatement = pooledConnection.prepareStatement(sqlString);
+            setArguments(preparedStatement, args);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return handler.handle(resultSet);
+            }
+        }
+    }
+
+    /**
+     * Runs the query on a pooled connection and hands each row to the handler as it is read, so that large results
+     * are streamed rather than buffered whole by the driver. The handler must not hold onto the row.
+     */
+    void forEachRow(String sqlString, RowHandler handler, Object ... args) throws SQLException {
+        try (ConnectionPool.PooledConnection pooledConnection = readConnections.borrow()) {
+            PreparedStatement preparedStatement = pooledConnection.prepareStatement(sqlString);
+            preparedStatement.setFetchSize(fetchSize);
+
+            try {
+                setArguments(preparedStatement, args);
+
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        handler.handle(resultSet);
+                    }
                 }
+            } finally {
+                // The statement stays in the connection's cache, so put the driver's default back before anything
+                // else runs the same SQL. Otherwise a MySQL query would stream and hold up the connection too.
+                preparedStatement.setFetchSize(0);
             }
+        }
+    }
 
-            return preparedStatement.executeQuery();
+    private static void setArguments(PreparedStatement preparedStatement, Object ... args) throws SQLException {
+        for (int x = 0; x < args.length; x++) {
+            if (args[x] instanceof Integer intArg) {
+                preparedStatement.setInt(x + 1, intArg);
+            } else if (args[x] instanceof Long longArg) {
+                preparedStatement.setLong(x + 1, longArg);
+            } else if (args[x] instanceof String strArg) {
+                preparedStatement.setString(x + 1, strArg);
+            }
         }
     }
 
     @SneakyThrows
     synchronized void updateConfig(StatisticsConfig config) {
-        if (connection != null) {
-            connection.close();
-        }
-
         DataSource dataSource = (switch (config.databaseType()) {
             case SQLITE -> {
-                SQLiteDataSource tmpDataSource = new SQLiteDataSource();
-                tmpDataSource.setUrl("jdbc:sqlite:" + Path.of(RuneLite.RUNELITE_DIR.getAbsolutePath(), "heatmap"));
+                SQLiteDataSource tmpDataSource =
+                        sqliteDataSource(Path.of(RuneLite.RUNELITE_DIR.getAbsolutePath(), "heatmap"));
                 tmpDataSource.setDatabaseName(config.databaseName());
 
                 yield tmpDataSource;
@@ -339,29 +1505,287 @@ public class Database {
             }
         });
 
-        connection = dataSource.getConnection();
+        configure(dataSource, config.databaseType(), config.databaseTablePrefix());
+    }
+
+    /**
+     * Opens the SQLite database in the given file the same way as the plugin's own, keeping its clan totals up to
+     * date, rather than the one in the RuneLite directory.
+     */
+    @SneakyThrows
+    static Database openSqlite(Path file, StatisticsMetrics metrics) {
+        Database database = new Database(metrics, "database.", true);
+        database.configure(sqliteDataSource(file), DatabaseType.SQLITE, "");
+        database.open();
+        return database;
+    }
+
+    /**
+     * Opens a SQLite database in the given file to hold a local copy of statistics from a remote database.
+     */
+    @SneakyThrows
+    static Database openReplica(Path file, StatisticsMetrics metrics) {
+        Database database = new Database(metrics, "replica.", false);
+        database.configure(sqliteDataSource(file), DatabaseType.SQLITE, "");
+        database.open();
+        database.createReplicaSyncTable();
+        return database;
+    }
+
+    /**
+     * Returns a data source for the SQLite database in the given file. The database is kept in WAL mode, so that
+     * readers see the last committed state instead of waiting for the writer, and writers in other clients sharing
+     * the file wait for the lock rather than failing. Transactions take the write lock as they begin, as a
+     * transaction which only asks for it on its first write can fail straight away if another writer got there first.
+     * Syncing only at checkpoints is safe in WAL mode, and anything lost in a power cut is replayed from the journal.
+     */
+    private static SQLiteDataSource sqliteDataSource(Path file) {
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:" + file);
+        dataSource.setJournalMode("WAL");
+        dataSource.setSynchronous("NORMAL");
+        dataSource.getConfig().setBusyTimeout(SQLITE_BUSY_TIMEOUT_MS);
+        dataSource.setCacheSize(SQLITE_CACHE_SIZE);
+        dataSource.setTransactionMode("IMMEDIATE");
+        return dataSource;
+    }
+
+    /**
+     * Points the database at another data source. The old connection pools are only closed once the new ones have
+     * taken their place, so a read never picks up a closed pool. Nothing is connected to until the database is next
+     * {@link #open opened}.
+     */
+    private synchronized void configure(DataSource dataSource, DatabaseType databaseType, String tablePrefix) {
+        ConnectionPool oldWriteConnections = writeConnections;
+        ConnectionPool oldReadConnections = readConnections;
+        ConnectionPool newWriteConnections = new ConnectionPool(dataSource, 1);
+        ConnectionPool newReadConnections = new ConnectionPool(dataSource, databaseType.getReadConnections());
+        fetchSize = databaseType.getFetchSize();
+
+        playerIds.clear();
+
+        this.tablePrefix = tablePrefix;
+        tableNamePlayers = tablePrefix + "players";
+        tableNameJournal = tablePrefix + "journal";
+        tableNameAppliedBatches = tablePrefix + "applied_batches";
+        tableNameKills = tablePrefix + "kills";
+        tableNameNpcKills = tablePrefix + "npc_kills";
+        tableNameLoot = tablePrefix + "loot";
+        tableNameXp = tablePrefix + "experience";
+        tableNameClanKills = tablePrefix + "clan_kills";
+        tableNameClanNpcKills = tablePrefix + "clan_npc_kills";
+        tableNameClanLoot = tablePrefix + "clan_loot";
+        tableNameClanXp = tablePrefix + "clan_experience";
+        tableNameReplicaSync = tablePrefix + "replica_sync";
+
+        dialect = databaseType.getDialect();
 
-        tableNameKills = config.databaseTablePrefix() + "kills";
-        tableNameLoot = config.databaseTablePrefix() + "loot";
-        tableNameXp = config.databaseTablePrefix() + "experience";
+        upsertKillSql = dialect.incrementUpsert(tableNameKills, keyColumns(KILL_COLUMNS, false), List.of("count"));
+        upsertLootSql = dialect.incrementUpsert(tableNameLoot, keyColumns(LOOT_COLUMNS, false), List.of("quantity"));
+        upsertXpSql = dialect.incrementUpsert(tableNameXp, keyColumns(XP_COLUMNS, false), List.of("xp", "count"));
+        upsertNpcKillSql = dialect.incrementUpsert(tableNameNpcKills, List.of("player_id", "npc_id"), List.of("count"));
+        upsertKillHourlySql = dialect.incrementUpsert(TimeBucket.HOURLY.tableName(tableNameKills),
+                                                      keyColumns(KILL_COLUMNS, true), List.of("count"));
+        upsertLootHourlySql = dialect.incrementUpsert(TimeBucket.HOURLY.tableName(tableNameLoot),
+                                                      keyColumns(LOOT_COLUMNS, true), List.of("quantity"));
+        upsertXpHourlySql = dialect.incrementUpsert(TimeBucket.HOURLY.tableName(tableNameXp),
+                                                    keyColumns(XP_COLUMNS, true), List.of("xp", "count"));
+        snapshotUpsertSql = new HashMap<>();
 
-        createDatabase();
+        for (SnapshotTable table : SNAPSHOT_TABLES) {
+            List<String> keyColumns = new ArrayList<>(List.of("player_id"));
+            keyColumns.addAll(table.keyColumns());
+            snapshotUpsertSql.put(table.name(), dialect.incrementUpsert(tablePrefix + table.name(), keyColumns,
+                                                                        table.valueColumns()));
+        }
+
+        clanKills = clanTable(dialect, tableNameClanKills, tableNameKills, KILL_COLUMNS, List.of("count"));
+        clanNpcKills = clanTable(dialect, tableNameClanNpcKills, tableNameNpcKills, List.of("npc_id"),
+                                 List.of("count"));
+        clanLoot = clanTable(dialect, tableNameClanLoot, tableNameLoot, LOOT_COLUMNS, List.of("quantity"));
+        clanXp = clanTable(dialect, tableNameClanXp, tableNameXp, XP_COLUMNS, List.of("xp", "count"));
+
+        rollUpSql = new ArrayList<>();
+        addRollUpSql(dialect, tableNameKills, KILL_COLUMNS, List.of("count"));
+        addRollUpSql(dialect, tableNameLoot, LOOT_COLUMNS, List.of("quantity"));
+        addRollUpSql(dialect, tableNameXp, XP_COLUMNS, List.of("xp", "count"));
+        insertIgnoreSql = dialect.insertIgnore();
+        insertPlayerSql = insertIgnoreSql + tableNamePlayers + " (username) VALUES (?)";
+
+        writeConnections = newWriteConnections;
+        readConnections = newReadConnections;
+        configuration++;
+
+        // Leave connecting and migrating to whoever opens the database next.
+        ready = false;
+
+        if (oldWriteConnections != null) {
+            oldWriteConnections.close();
+            oldReadConnections.close();
+        }
+    }
+
+    void close() {
+        writeConnections.close();
+        readConnections.close();
+    }
+
+    /**
+     * Builds the statements which keep a clan table in step with the per-player table it sums. Rows are matched
+     * between the two on every key column besides the player.
+     */
+    private static ClanTable clanTable(SqlDialect dialect, String tableName, String playerTableName,
+                                       List<String> keyColumns, List<String> valueColumns) {
+        String playerRow = " FROM " + playerTableName + " player WHERE player.player_id = ?" +
+                           keyColumns.stream()
+                                     .map(column -> " AND player." + column + " = " + tableName + "." + column)
+                                     .collect(Collectors.joining());
+        String subtractSql = "UPDATE " + tableName + " SET " +
+                             valueColumns.stream()
+                                         .map(column -> column + " = " + column + " - (SELECT player." + column +
+                                                        playerRow + ")")
+                                         .collect(Collectors.joining(", ")) +
+                             " WHERE EXISTS (SELECT 1" + playerRow + ")";
+        String pruneSql = "DELETE FROM " + tableName + " WHERE " +
+                          valueColumns.stream().map(column -> column + " = 0").collect(Collectors.joining(" AND "));
+        String addSql = dialect.incrementUpsertSelect(tableName, keyColumns, valueColumns,
+                                                      "SELECT " + String.join(", ", keyColumns) + ", " +
+                                                      String.join(", ", valueColumns) + " FROM " + playerTableName +
+                                                      " WHERE player_id = ?");
+
+        return new ClanTable(playerTableName, dialect.incrementUpsert(tableName, keyColumns, valueColumns), addSql,
+                             subtractSql, valueColumns.size() + 1, pruneSql);
+    }
+
+    private static List<SnapshotTable> snapshotTables() {
+        List<SnapshotTable> tables = new ArrayList<>();
+        addSnapshotTables(tables, "kills", KILL_COLUMNS, List.of("count"));
+        addSnapshotTables(tables, "experience", XP_COLUMNS, List.of("xp", "count"));
+        addSnapshotTables(tables, "loot", LOOT_COLUMNS, List.of("quantity"));
+        return List.copyOf(tables);
+    }
+
+    private static void addSnapshotTables(List<SnapshotTable> tables, String name, List<String> columns,
+                                          List<String> valueColumns) {
+        List<String> keyColumns = keyColumns(columns, false);
+        tables.add(new SnapshotTable(name, keyColumns.subList(1, keyColumns.size()), valueColumns));
+
+        for (TimeBucket bucket : TimeBucket.values()) {
+            List<String> bucketedKeyColumns = keyColumns(columns, true);
+            tables.add(new SnapshotTable(bucket.tableName(name),
+                                         bucketedKeyColumns.subList(1, bucketedKeyColumns.size()), valueColumns));
+        }
+    }
+
+    private static List<String> keyColumns(List<String> columns, boolean bucketed) {
+        List<String> keyColumns = new ArrayList<>();
+        keyColumns.add("player_id");
+
+        if (bucketed) {
+            keyColumns.add("bucket");
+        }
+
+        keyColumns.addAll(columns);
+        return keyColumns;
+    }
+
+    /**
+     * Adds the statements which total a table's hourly rows before the cutoff into its daily rows, then remove them.
+     */
+    private void addRollUpSql(SqlDialect dialect, String tableName, List<String> columns,
+                              List<String> incrementColumns) {
+        String hourlyTableName = TimeBucket.HOURLY.tableName(tableName);
+        String day = dialect.integerDivide("bucket", String.valueOf(TimeBucket.HOURS_PER_DAY));
+        String groupColumns = "player_id, " + day + ", " + String.join(", ", columns);
+
+        rollUpSql.add(dialect.incrementUpsertSelect(
+                TimeBucket.DAILY.tableName(tableName), keyColumns(columns, true), incrementColumns,
+                "SELECT " + groupColumns + ", " +
+                incrementColumns.stream()
+                                .map(column -> "SUM(" + column + ")")
+                                .collect(Collectors.joining(", ")) +
+                " FROM " + hourlyTableName + " WHERE bucket < ? GROUP BY " + groupColumns));
+        rollUpSql.add("DELETE FROM " + hourlyTableName + " WHERE bucket < ?");
+    }
+
+    record NpcSummary(int npcId, int kills, Map<Integer, Integer> loot) {
+    }
+
+    /**
+     * The hourly buckets in which a player's totals were last copied to the local replica in full, and last brought
+     * up to date.
+     */
+    record ReplicaSync(int copiedHour, int syncedHour) {
+    }
+
+    @FunctionalInterface
+    interface ResultSetHandler<T> {
+
+        T handle(ResultSet resultSet) throws SQLException;
+    }
+
+    /**
+     * A table held in snapshots, named without the table prefix. The key columns are its primary key after the player.
+     */
+    record SnapshotTable(String name, List<String> keyColumns, List<String> valueColumns) {
+
+        List<String> columns() {
+            List<String> columns = new ArrayList<>(keyColumns);
+            columns.addAll(valueColumns);
+            return columns;
+        }
+    }
+
+    /**
+     * The statements which keep a clan table in step with the per-player table it sums.
+     */
+    private record ClanTable(String playerTableName, String upsertSql, String addSql, String subtractSql,
+                             int subtractPlaceholders, String pruneSql) {
+    }
+
+    @FunctionalInterface
+    interface RowHandler {
+
+        void handle(ResultSet row) throws SQLException;
     }
 
     public enum DatabaseType {
 
-        SQLITE("sqlite"),
-        MYSQL("mysql"),
-        MARIADB("mariadb");
+        // SQLite steps through rows itself, Connector/J only streams rows when the fetch size is Integer.MIN_VALUE,
+        // and the MariaDB driver fetches in batches of the given size.
+        SQLITE("sqlite", SqlDialect.SQLITE, 2, 0),
+        MYSQL("mysql", SqlDialect.MYSQL, 3, Integer.MIN_VALUE),
+        MARIADB("mariadb", SqlDialect.MYSQL, 3, 1000);
 
         private final String name;
+        private final SqlDialect dialect;
+        private final int readConnections;
+        private final int fetchSize;
 
-        DatabaseType(String name) {
+        DatabaseType(String name, SqlDialect dialect, int readConnections, int fetchSize) {
             this.name = name;
+            this.dialect = dialect;
+            this.readConnections = readConnections;
+            this.fetchSize = fetchSize;
         }
 
         public String getName() {
             return name;
         }
+
+        SqlDialect getDialect() {
+            return dialect;
+        }
+
+        /**
+         * Returns how many connections are opened for reads, alongside the one used for writes.
+         */
+        int getReadConnections() {
+            return readConnections;
+        }
+
+        int getFetchSize() {
+            return fetchSize;
+        }
     }
 }
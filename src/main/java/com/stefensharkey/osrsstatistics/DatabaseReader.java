@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs database reads on background threads, so that callers such as overlays never wait on the database.
+ */
+class DatabaseReader {
+
+    private static final int THREADS = 2;
+
+    private final Database database;
+    private final ThreadPoolExecutor executor;
+
+    private volatile LocalReplica replica;
+
+    DatabaseReader(Database database) {
+        this.database = database;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "statistics-reader-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        // Equivalent to a fixed thread pool, but typed so that its activity can be reported.
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                                          threadFactory);
+    }
+
+    /**
+     * Sets the local replica to serve all-time reads from, or null to read everything from the database. Reads
+     * between two times always go to the database, as the replica only holds all-time totals.
+     */
+    void setReplica(LocalReplica replica) {
+        this.replica = replica;
+    }
+
+    CompletableFuture<TileStore> retrieveKillMap(String username, int plane) {
+        return read(() -> source(username).retrieveKillMap(username, plane));
+    }
+
+    CompletableFuture<TileStore> retrieveKillMap(String username, int plane, int minX, int minY, int maxX,
+                                                 int maxY) {
+        return read(() -> source(username).retrieveKillMap(username, plane, minX, minY, maxX, maxY));
+    }
+
+    CompletableFuture<TileStore> retrieveKillMap(String username, int plane, int minX, int minY, int maxX, int maxY,
+                                                 Instant from, Instant to) {
+        return read(() -> database.retrieveKillMap(username, plane, minX, minY, maxX, maxY, from, to));
+    }
+
+    CompletableFuture<Map<Integer, Map<Integer, Integer>>> retrieveLootMap(String username) {
+        return read(() -> source(username).retrieveLootMap(username));
+    }
+
+    CompletableFuture<Map<Integer, Map<Integer, Integer>>> retrieveLootMap(String username, Instant from,
+                                                                           Instant to) {
+        return read(() -> database.retrieveLootMap(username, from, to));
+    }
+
+    CompletableFuture<Database.NpcSummary> retrieveNpcSummary(String username, int npcId) {
+        return read(() -> source(username).retrieveNpcSummary(username, npcId));
+    }
+
+    CompletableFuture<TileStore> retrieveXpMap(String username, int plane, int minX, int minY, int maxX, int maxY) {
+        return read(() -> source(username).retrieveXpMap(username, plane, minX, minY, maxX, maxY));
+    }
+
+    CompletableFuture<TileStore> retrieveXpMap(String username, int plane, int minX, int minY, int maxX, int maxY,
+                                               Instant from, Instant to) {
+        return read(() -> database.retrieveXpMap(username, plane, minX, minY, maxX, maxY, from, to));
+    }
+
+    /**
+     * Reads the totals of every player together. These always go to the database, as the replica only holds the
+     * totals of the players it serves.
+     */
+    CompletableFuture<TileStore> retrieveClanKillMap(int plane, int minX, int minY, int maxX, int maxY) {
+        return read(() -> database.retrieveClanKillMap(plane, minX, minY, maxX, maxY));
+    }
+
+    CompletableFuture<TileStore> retrieveClanXpMap(int plane, int minX, int minY, int maxX, int maxY) {
+        return read(() -> database.retrieveClanXpMap(plane, minX, minY, maxX, maxY));
+    }
+
+    CompletableFuture<Database.NpcSummary> retrieveClanNpcSummary(int npcId) {
+        return read(() -> database.retrieveClanNpcSummary(npcId));
+    }
+
+    /**
+     * Runs any other work which should stay off the client thread, such as building a snapshot from cached data.
+     */
+    <T> CompletableFuture<T> submit(Supplier<T> supplier) {
+        return CompletableFuture.supplyAsync(supplier, executor);
+    }
+
+    /**
+     * Runs a read once the database has been opened. Until then there is nothing to show, so the read completes
+     * straight away with no result.
+     */
+    private <T> CompletableFuture<T> read(Supplier<T> supplier) {
+        return database.isReady() ? submit(supplier) : CompletableFuture.completedFuture(null);
+    }
+
+    private Database source(String username) {
+        LocalReplica currentReplica = replica;
+        return currentReplica != null && currentReplica.serves(username) ? currentReplica.getDatabase() : database;
+    }
+
+    /**
+     * Returns how many reads are running right now.
+     */
+    int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns how many reads are waiting for a free thread.
+     */
+    int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
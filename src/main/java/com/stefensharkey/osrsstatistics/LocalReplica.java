@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stefensharkey.osrsstatistics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A local SQLite copy of players' all-time totals from a remote database, so that overlays can be drawn without a
+ * round trip to the server. The local player's writes are applied to the copy as they are made, and each player's
+ * copy is periodically brought up to date with the server, which stays the source of truth.
+ *
+ * <p>A player's totals are copied in full the first time, along with their recent hourly rows. After that, only
+ * their hourly rows since the last update are read from the server. These replace the copy's own hourly rows, and
+ * the all-time totals move by the difference. Every write adds to the hourly and all-time totals together, so this
+ * keeps the totals in step with the server without reading them again.
+ *
+ * <p>A player is only read from the copy once their totals have been copied at least once. All copying happens on the
+ * writer thread, so a refresh never interleaves with a write.
+ */
+@Slf4j
+class LocalReplica {
+
+    // How far before the last update each update reads back from, to pick up hourly rows written late, such as by a
+    // client sending statistics it stored while offline. Anything later still is picked up by the next full copy.
+    private static final int LATE_HOURS = 24;
+
+    // How long a full copy lasts before the next one. Updates must only read hours which are still hourly rather than
+    // rolled up into days, on both sides.
+    private static final int FULL_COPY_HOURS = Database.HOURLY_RETENTION_DAYS * TimeBucket.HOURS_PER_DAY - LATE_HOURS;
+
+    private final Database database;
+    // When each player's totals were last copied, by System.nanoTime().
+    private final Map<String, Long> refreshed = new ConcurrentHashMap<>();
+    private final Set<String> requested = ConcurrentHashMap.newKeySet();
+
+    private LocalReplica(Database database) {
+        this.database = database;
+    }
+
+    static LocalReplica open(Path file, StatisticsMetrics metrics) {
+        return new LocalReplica(Database.openReplica(file, metrics));
+    }
+
+    Database getDatabase() {
+        return database;
+    }
+
+    /**
+     * Returns whether reads for the player can be served from the copy. If not, a copy of the player's totals is
+     * requested.
+     */
+    boolean serves(String username) {
+        if (refreshed.containsKey(username)) {
+            return true;
+        }
+
+        requested.add(username);
+        return false;
+    }
+
+    /**
+     * Marks every player as due for a full copy, such as after switching to another remote database.
+     */
+    void invalidate() {
+        database.clearReplicaSync();
+        requested.addAll(refreshed.keySet());
+        refreshed.clear();
+    }
+
+    void write(StatisticsBuffer buffer) {
+        database.writeBuffer(buffer);
+    }
+
+    /**
+     * Brings the copy of every player who was requested, or whose copy is older than the given interval, up to date
+     * with the remote database. Returns whether anything was copied.
+     */
+    boolean refresh(Database remote, long intervalNanos) {
+        long now = System.nanoTime();
+        boolean copied = false;
+
+        for (String username : requested) {
+            copy(remote, username, now);
+            requested.remove(username);
+            copied = true;
+        }
+
+        for (Map.Entry<String, Long> entry : refreshed.entrySet()) {
+            if (now - entry.getValue() >= intervalNanos) {
+                copy(remote, entry.getKey(), now);
+                copied = true;
+            }
+        }
+
+        return copied;
+    }
+
+    void close() {
+        database.close();
+    }
+
+    private void copy(Database remote, String username, long now) {
+        int hour = TimeBucket.HOURLY.of(System.currentTimeMillis());
+        Database.ReplicaSync sync = database.retrieveReplicaSync(username);
+
+        if (sync == null || hour - sync.copiedHour() >= FULL_COPY_HOURS) {
+            log.debug("Copying statistics for {} to the local replica", username);
+
+            int fromHour = hour - LATE_HOURS;
+            database.replacePlayerTotals(username, remote.retrievePlayerTotals(username), fromHour,
+                                         remote.retrievePlayerHours(username, fromHour));
+            database.writeReplicaSync(username, new Database.ReplicaSync(hour, hour));
+        } else {
+            int fromHour = sync.syncedHour() - LATE_HOURS;
+            log.debug("Updating statistics for {} in the local replica from hour {}", username, fromHour);
+
+            database.replacePlayerHours(username, fromHour, remote.retrievePlayerHours(username, fromHour));
+            database.writeReplicaSync(username, new Database.ReplicaSync(sync.copiedHour(), hour));
+        }
+
+        refreshed.put(username, now);
+    }
+}
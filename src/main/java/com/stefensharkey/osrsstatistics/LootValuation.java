@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import net.runelite.client.game.ItemManager;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Values loot at Grand Exchange prices. Each item's price is looked up from the item manager the first time it is
+ * valued and then kept in a snapshot, which is dropped every {@link #REFRESH_INTERVAL_MS} so that values follow the
+ * market without looking prices up again for every drop shown.
+ */
+@Singleton
+class LootValuation {
+
+    /**
+     * The value of everything an NPC has dropped, in total and on average per kill.
+     */
+    record Value(long total, long perKill) {
+    }
+
+    private static final long REFRESH_INTERVAL_MS = TimeUnit.MINUTES.toMillis(30);
+
+    private final ItemManager itemManager;
+
+    private volatile Map<Integer, Integer> prices = new ConcurrentHashMap<>();
+    private volatile long refreshedAt = System.currentTimeMillis();
+    private volatile int version;
+
+    @Inject
+    LootValuation(ItemManager itemManager) {
+        this.itemManager = itemManager;
+    }
+
+    /**
+     * Returns a number which changes whenever the price snapshot is refreshed, dropping the old snapshot first if it
+     * is due.
+     */
+    int getVersion() {
+        long now = System.currentTimeMillis();
+
+        if (now - refreshedAt >= REFRESH_INTERVAL_MS) {
+            synchronized (this) {
+                if (now - refreshedAt >= REFRESH_INTERVAL_MS) {
+                    prices = new ConcurrentHashMap<>();
+                    refreshedAt = now;
+                    version++;
+                }
+            }
+        }
+
+        return version;
+    }
+
+    Value value(Database.NpcSummary summary) {
+        Map<Integer, Integer> currentPrices = prices;
+        long total = 0;
+
+        for (Map.Entry<Integer, Integer> entry : summary.loot().entrySet()) {
+            total += (long) currentPrices.computeIfAbsent(entry.getKey(), itemManager::getItemPrice) * entry.getValue();
+        }
+
+        return new Value(total, summary.kills() > 0 ? total / summary.kills() : 0);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import net.runelite.api.Skill;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Measures XP per hour for each skill and kills per hour for each NPC, over the last five minutes, the last hour and
+ * the whole session. Each skill and NPC has a ring of time slots holding the amount gained in each slot, so recording
+ * a sample only adds to a slot and never allocates, and a rate only sums the slots within its window. The one
+ * exception is the first kill of an NPC which hasn't been killed before this session, which needs a ring of its own.
+ *
+ * <p>Only used from the client thread.
+ */
+class RateTracker {
+
+    enum Window {
+
+        FIVE_MINUTES(TimeUnit.MINUTES.toMillis(5)),
+        HOUR(TimeUnit.HOURS.toMillis(1)),
+        SESSION(Long.MAX_VALUE);
+
+        private final long lengthMillis;
+
+        Window(long lengthMillis) {
+            this.lengthMillis = lengthMillis;
+        }
+    }
+
+    private static final long SLOT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    // Enough slots to cover the longest window short of the session, which is totalled separately.
+    private static final int SLOTS = (int) (Window.HOUR.lengthMillis / SLOT_MILLIS);
+    private static final double MILLIS_PER_HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final int INITIAL_NPC_CAPACITY = 64;
+
+    private final Series[] skills = new Series[Skill.values().length];
+
+    // NPC ids are kept in an open addressing table, so that looking up an NPC's ring doesn't box its id. Slots hold
+    // the NPC id plus one, leaving zero for an empty slot.
+    private int[] npcKeys = new int[INITIAL_NPC_CAPACITY];
+    private Series[] npcSeries = new Series[INITIAL_NPC_CAPACITY];
+    private int npcCount;
+
+    private long sessionStart;
+
+    RateTracker() {
+        for (int x = 0; x < skills.length; x++) {
+            skills[x] = new Series();
+        }
+    }
+
+    /**
+     * Forgets everything recorded and starts a new session.
+     */
+    void reset(long now) {
+        for (Series series : skills) {
+            series.clear();
+        }
+
+        Arrays.fill(npcKeys, 0);
+        Arrays.fill(npcSeries, null);
+        npcCount = 0;
+        sessionStart = now;
+    }
+
+    void recordXp(Skill skill, int xp, long now) {
+        skills[skill.ordinal()].add(now, xp);
+    }
+
+    void recordKill(int npcId, long now) {
+        int index = findNpc(npcId);
+
+        if (npcKeys[index] == 0) {
+            if ((npcCount + 1) * 2 > npcKeys.length) {
+                growNpcs();
+                index = findNpc(npcId);
+            }
+
+            npcKeys[index] = npcId + 1;
+            npcSeries[index] = new Series();
+            npcCount++;
+        }
+
+        npcSeries[index].add(now, 1);
+    }
+
+    double xpPerHour(Skill skill, Window window, long now) {
+        return perHour(skills[skill.ordinal()], window, now);
+    }
+
+    double killsPerHour(int npcId, Window window, long now) {
+        int index = findNpc(npcId);
+        return npcKeys[index] == 0 ? 0 : perHour(npcSeries[index], window, now);
+    }
+
+    long getSessionXp(Skill skill) {
+        return skills[skill.ordinal()].sessionTotal;
+    }
+
+    /**
+     * Passes the id of every NPC killed this session to the consumer, in no particular order.
+     */
+    void forEachKilledNpc(IntConsumer consumer) {
+        for (int key : npcKeys) {
+            if (key != 0) {
+                consumer.accept(key - 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the rate over the window, or over the session so far if that is shorter, so that a rate doesn't start
+     * out diluted by time before the session began.
+     */
+    private double perHour(Series series, Window window, long now) {
+        long elapsed = Math.min(window.lengthMillis, now - sessionStart);
+
+        if (elapsed <= 0) {
+            return 0;
+        }
+
+        long amount = window == Window.SESSION ? series.sessionTotal : series.sum(now - elapsed, now);
+        return amount * MILLIS_PER_HOUR / elapsed;
+    }
+
+    private int findNpc(int npcId) {
+        int mask = npcKeys.length - 1;
+        int index = (npcId * 0x9E3779B9 >>> 16) & mask;
+
+        while (npcKeys[index] != 0 && npcKeys[index] != npcId + 1) {
+            index = (index + 1) & mask;
+        }
+
+        return index;
+    }
+
+    private void growNpcs() {
+        int[] oldKeys = npcKeys;
+        Series[] oldSeries = npcSeries;
+        npcKeys = new int[oldKeys.length * 2];
+        npcSeries = new Series[oldSeries.length * 2];
+
+        for (int x = 0; x < oldKeys.length; x++) {
+            if (oldKeys[x] != 0) {
+                int index = findNpc(oldKeys[x] - 1);
+                npcKeys[index] = oldKeys[x];
+                npcSeries[index] = oldSeries[x];
+            }
+        }
+    }
+
+    /**
+     * The amounts gained in each of the last {@link #SLOTS} time slots, along with the total for the session.
+     */
+    private static final class Series {
+
+        // The slot number each entry was last written for, so that entries left over from an earlier lap of the ring
+        // can be told apart.
+        private final long[] slotNumbers = new long[SLOTS];
+        private final long[] amounts = new long[SLOTS];
+
+        private long sessionTotal;
+
+        private Series() {
+            clear();
+        }
+
+        private void clear() {
+            Arrays.fill(slotNumbers, -1);
+            Arrays.fill(amounts, 0);
+            sessionTotal = 0;
+        }
+
+        private void add(long time, long amount) {
+            long slotNumber = time / SLOT_MILLIS;
+            int index = (int) (slotNumber % SLOTS);
+
+            if (slotNumbers[index] != slotNumber) {
+                slotNumbers[index] = slotNumber;
+                amounts[index] = 0;
+            }
+
+            amounts[index] += amount;
+            sessionTotal += amount;
+        }
+
+        /**
+         * Returns the amount gained in the slots overlapping the given times.
+         */
+        private long sum(long from, long to) {
+            long firstSlot = from / SLOT_MILLIS;
+            long lastSlot = to / SLOT_MILLIS;
+            long total = 0;
+
+            for (int x = 0; x < SLOTS; x++) {
+                if (slotNumbers[x] >= firstSlot && slotNumbers[x] <= lastSlot) {
+                    total += amounts[x];
+                }
+            }
+
+            return total;
+        }
+    }
+}
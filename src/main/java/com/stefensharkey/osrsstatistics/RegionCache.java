@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import lombok.extern.slf4j.Slf4j;
+import net.runelite.api.coords.WorldPoint;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Caches statistics by 64x64 map region and plane. Regions around the player are loaded in the background as the
+ * player moves, and the least recently used regions are dropped once the cache is full.
+ */
+@Slf4j
+class RegionCache<T> {
+
+    @FunctionalInterface
+    interface Loader<T> {
+
+        CompletableFuture<T> load(String username, int plane, int minX, int minY, int maxX, int maxY);
+    }
+
+    private static final int REGION_SHIFT = 6;
+    private static final int REGION_SIZE = 1 << REGION_SHIFT;
+
+    // Regions within this many regions of the player's are drawn; the scene never extends further than this.
+    private static final int VISIBLE_RADIUS = 1;
+    // Regions within this many regions of the player's are loaded ahead of the player walking into them.
+    private static final int PREFETCH_RADIUS = 2;
+    private static final int CAPACITY = 64;
+    private static final long RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(5);
+
+    private final Loader<T> loader;
+    private final Map<Integer, Region<T>> entries = new LinkedHashMap<>(CAPACITY, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Region<T>> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    private String username;
+    private int version;
+
+    RegionCache(Loader<T> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Starts loading any region near the player which is missing or out of date. Never blocks on the database.
+     */
+    synchronized void update(String username, WorldPoint location) {
+        if (!Objects.equals(username, this.username)) {
+            entries.clear();
+            this.username = username;
+            version++;
+        }
+
+        int regionX = location.getX() >> REGION_SHIFT;
+        int regionY = location.getY() >> REGION_SHIFT;
+
+        for (int dx = -PREFETCH_RADIUS; dx <= PREFETCH_RADIUS; dx++) {
+            for (int dy = -PREFETCH_RADIUS; dy <= PREFETCH_RADIUS; dy++) {
+                request(location.getPlane(), regionX + dx, regionY + dy);
+            }
+        }
+    }
+
+    /**
+     * Passes the cached data of every loaded region around the given location to the consumer.
+     */
+    synchronized void forEachVisible(WorldPoint location, Consumer<T> consumer) {
+        int regionX = location.getX() >> REGION_SHIFT;
+        int regionY = location.getY() >> REGION_SHIFT;
+
+        for (int dx = -VISIBLE_RADIUS; dx <= VISIBLE_RADIUS; dx++) {
+            for (int dy = -VISIBLE_RADIUS; dy <= VISIBLE_RADIUS; dy++) {
+                Region<T> entry = entries.get(key(location.getPlane(), regionX + dx, regionY + dy));
+
+                if (entry != null && entry.data != null) {
+                    consumer.accept(entry.data);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the region containing the tile as out of date. Its current data is kept until the reload completes.
+     */
+    synchronized void invalidate(int x, int y, int plane) {
+        Region<T> entry = entries.get(key(plane, x >> REGION_SHIFT, y >> REGION_SHIFT));
+
+        if (entry != null) {
+            entry.stale = true;
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        version++;
+    }
+
+    /**
+     * Returns a number which changes whenever the cached data does.
+     */
+    synchronized int getVersion() {
+        return version;
+    }
+
+    private void request(int plane, int regionX, int regionY) {
+        if (regionX < 0 || regionY < 0) {
+            return;
+        }
+
+        int key = key(plane, regionX, regionY);
+        Region<T> entry = entries.get(key);
+
+        if (entry == null) {
+            entry = new Region<>();
+            entries.put(key, entry);
+        }
+
+        if (entry.loading || (entry.data != null && !entry.stale) || System.currentTimeMillis() < entry.retryAt) {
+            return;
+        }
+
+        Region<T> loadingEntry = entry;
+        String loadingUsername = username;
+        int minX = regionX << REGION_SHIFT;
+        int minY = regionY << REGION_SHIFT;
+
+        loadingEntry.loading = true;
+        loadingEntry.stale = false;
+
+        loader.load(loadingUsername, plane, minX, minY, minX + REGION_SIZE - 1, minY + REGION_SIZE - 1)
+              .whenComplete((data, throwable) -> {
+                  if (throwable != null) {
+                      log.warn("Failed to load region {},{} on plane {}", regionX, regionY, plane, throwable);
+                  }
+
+                  loaded(loadingEntry, loadingUsername, data);
+              });
+    }
+
+    private synchronized void loaded(Region<T> entry, String username, T data) {
+        entry.loading = false;
+
+        if (data == null) {
+            entry.retryAt = System.currentTimeMillis() + RETRY_DELAY_MS;
+        } else if (Objects.equals(username, this.username)) {
+            entry.data = data;
+            version++;
+        }
+    }
+
+    private static int key(int plane, int regionX, int regionY) {
+        return (plane << 16) | ((regionX & 0xFF) << 8) | (regionY & 0xFF);
+    }
+
+    private static final class Region<T> {
+
+        private T data;
+        private boolean stale;
+        private boolean loading;
+        private long retryAt;
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import lombok.extern.slf4j.Slf4j;
+import net.runelite.api.Skill;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * Brings tables written by older versions of the plugin up to the current layout. The layout version is recorded in
+ * its own table, and each migration is written so that it can be re-run if it was interrupted part way through.
+ */
+@Slf4j
+class SchemaMigrator {
+
+    static final int LATEST_VERSION = 7;
+
+    private final SqlDialect dialect;
+    private final String tableNameVersion;
+    private final String tableNamePlayers;
+    private final String tableNameKills;
+    private final String tableNameNpcKills;
+    private final String tableNameLoot;
+    private final String tableNameXp;
+    private final String tableNameClanKills;
+    private final String tableNameClanNpcKills;
+    private final String tableNameClanLoot;
+    private final String tableNameClanXp;
+    private final String tableNameAppliedBatches;
+
+    SchemaMigrator(String tablePrefix, SqlDialect dialect) {
+        this.dialect = dialect;
+        tableNameVersion = tablePrefix + "schema_version";
+        tableNamePlayers = tablePrefix + "players";
+        tableNameKills = tablePrefix + "kills";
+        tableNameNpcKills = tablePrefix + "npc_kills";
+        tableNameLoot = tablePrefix + "loot";
+        tableNameXp = tablePrefix + "experience";
+        tableNameClanKills = tablePrefix + "clan_kills";
+        tableNameClanNpcKills = tablePrefix + "clan_npc_kills";
+        tableNameClanLoot = tablePrefix + "clan_loot";
+        tableNameClanXp = tablePrefix + "clan_experience";
+        tableNameAppliedBatches = tablePrefix + "applied_batches";
+    }
+
+    /**
+     * Migrates any existing tables. This must run before the current tables are created, so that an old table is not
+     * mistaken for a new one.
+     */
+    void migrate(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameVersion + " (version INT NOT NULL)");
+        }
+
+        int version = readVersion(connection);
+
+        if (version == 0) {
+            // Nothing has been recorded, so either the tables predate versioning or there are no tables yet.
+            version = tableExists(connection, tableNameXp) ? 1 : LATEST_VERSION;
+            writeVersion(connection, version);
+        }
+
+        while (version < LATEST_VERSION) {
+            version++;
+            log.info("Migrating statistics tables to version {}", version);
+
+            switch (version) {
+                case 2 -> normalizeXp(connection);
+                case 3 -> introducePlayerIds(connection);
+                case 4 -> summarizeNpcKills(connection);
+                case 5 -> keyByRegion(connection);
+                case 6 -> addClanTotals(connection);
+                case 7 -> timestampAppliedBatches(connection);
+                default -> throw new IllegalStateException("No migration to version " + version);
+            }
+
+            writeVersion(connection, version);
+        }
+    }
+
+    /**
+     * Version 2 replaces the XP table's two columns per skill with one row per skill.
+     */
+    private void normalizeXp(Connection connection) throws SQLException {
+        String tableNameWide = tableNameXp + "_wide";
+
+        try (Statement statement = connection.createStatement()) {
+            if (!tableExists(connection, tableNameWide)) {
+                statement.execute("ALTER TABLE " + tableNameXp + " RENAME TO " + tableNameWide);
+            }
+
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameXp +
+                              """
+                              (
+                                  username VARCHAR(50) NOT NULL,
+                                  x_coord MEDIUMINT UNSIGNED NOT NULL,
+                                  y_coord MEDIUMINT UNSIGNED NOT NULL,
+                                  plane TINYINT UNSIGNED NOT NULL,
+                                  world SMALLINT UNSIGNED NOT NULL,
+                                  skill_id TINYINT UNSIGNED NOT NULL,
+                                  xp INT UNSIGNED NOT NULL DEFAULT 0,
+                                  count INT UNSIGNED NOT NULL DEFAULT 0,
+                                  PRIMARY KEY (username, x_coord, y_coord, plane, world, skill_id)
+                              )
+                              """);
+
+            inTransaction(connection, () -> {
+                // Start from empty in case an earlier attempt copied some of the rows.
+                statement.execute("DELETE FROM " + tableNameXp);
+
+                for (int x = 0; x < Skill.values().length - 1; x++) {
+                    String skillName = Skill.values()[x].getName().toLowerCase();
+
+                    statement.execute("INSERT INTO " + tableNameXp +
+                                      " (username, x_coord, y_coord, plane, world, skill_id, xp, count)" +
+                                      " SELECT username, x_coord, y_coord, plane, world, " + x + ", " + skillName +
+                                      ", " + skillName + "_num FROM " + tableNameWide +
+                                      " WHERE " + skillName + "_num > 0");
+                }
+            });
+
+            statement.execute("DROP TABLE " + tableNameWide);
+        }
+    }
+
+    /**
+     * Version 3 moves usernames into a table of their own, and keys the other tables on the player's id instead.
+     * Coordinates and ids are narrowed to the smallest types that fit them at the same time.
+     */
+    private void introducePlayerIds(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNamePlayers +
+                              " (" + dialect.autoIncrementPrimaryKey("player_id") + ", " +
+                              """
+                                  username VARCHAR(50) NOT NULL UNIQUE,
+                                  account_hash BIGINT NULL
+                              )
+                              """);
+        }
+
+        rekeyByPlayer(connection, tableNameXp,
+                      """
+                      (
+                          player_id INT UNSIGNED NOT NULL,
+                          x_coord SMALLINT UNSIGNED NOT NULL,
+                          y_coord SMALLINT UNSIGNED NOT NULL,
+                          plane TINYINT UNSIGNED NOT NULL,
+                          world SMALLINT UNSIGNED NOT NULL,
+                          skill_id TINYINT UNSIGNED NOT NULL,
+                          xp INT UNSIGNED NOT NULL DEFAULT 0,
+                          count INT UNSIGNED NOT NULL DEFAULT 0,
+                          PRIMARY KEY (player_id, x_coord, y_coord, plane, world, skill_id)
+                      )
+                      """,
+                      "x_coord, y_coord, plane, world, skill_id, xp, count");
+
+        rekeyByPlayer(connection, tableNameKills,
+                      """
+                      (
+                          player_id INT UNSIGNED NOT NULL,
+                          x_coord SMALLINT UNSIGNED NOT NULL,
+                          y_coord SMALLINT UNSIGNED NOT NULL,
+                          plane TINYINT UNSIGNED NOT NULL,
+                          world SMALLINT UNSIGNED NOT NULL,
+                          npc_id MEDIUMINT UNSIGNED NOT NULL,
+                          count INT UNSIGNED NOT NULL DEFAULT 0,
+                          PRIMARY KEY (player_id, x_coord, y_coord, plane, world, npc_id)
+                      )
+                      """,
+                      "x_coord, y_coord, plane, world, npc_id, count");
+
+        rekeyByPlayer(connection, tableNameLoot,
+                      """
+                      (
+                          player_id INT UNSIGNED NOT NULL,
+                          npc_id MEDIUMINT UNSIGNED NOT NULL,
+                          item_id MEDIUMINT UNSIGNED NOT NULL,
+                          quantity INT UNSIGNED NOT NULL,
+                          PRIMARY KEY (player_id, npc_id, item_id)
+                      )
+                      """,
+                      "npc_id, item_id, quantity");
+    }
+
+    /**
+     * Rebuilds a table keyed by username as one keyed by player id, copying across the given columns.
+     */
+    private void rekeyByPlayer(Connection connection, String tableName, String definition, String columns)
+            throws SQLException {
+        String tableNameOld = tableName + "_v2";
+
+        rebuild(connection, tableName, tableNameOld, definition,
+                dialect.insertIgnore() + tableNamePlayers + " (username)" +
+                " SELECT DISTINCT username FROM " + tableNameOld,
+                "INSERT INTO " + tableName + " (player_id, " + columns + ")" +
+                " SELECT player.player_id, old." + columns.replace(", ", ", old.") +
+                " FROM " + tableNameOld + " old JOIN " + tableNamePlayers +
+                " player ON player.username = old.username");
+    }
+
+    /**
+     * Version 5 adds the region holding each tile to the XP and kill tables, and keys them by plane and region ahead
+     * of the coordinates so that reading an area seeks straight to its rows.
+     */
+    private void keyByRegion(Connection connection) throws SQLException {
+        String xpDefinition = """
+                              (
+                                  player_id INT UNSIGNED NOT NULL,%s
+                                  plane TINYINT UNSIGNED NOT NULL,
+                                  region_id SMALLINT UNSIGNED NOT NULL,
+                                  x_coord SMALLINT UNSIGNED NOT NULL,
+                                  y_coord SMALLINT UNSIGNED NOT NULL,
+                                  world SMALLINT UNSIGNED NOT NULL,
+                                  skill_id TINYINT UNSIGNED NOT NULL,
+                                  xp INT UNSIGNED NOT NULL DEFAULT 0,
+                                  count INT UNSIGNED NOT NULL DEFAULT 0,
+                                  PRIMARY KEY (player_id,%s plane, region_id, x_coord, y_coord, world, skill_id)
+                              )
+                              """;
+        String killDefinition = """
+                                (
+                                    player_id INT UNSIGNED NOT NULL,%s
+                                    plane TINYINT UNSIGNED NOT NULL,
+                                    region_id SMALLINT UNSIGNED NOT NULL,
+                                    x_coord SMALLINT UNSIGNED NOT NULL,
+                                    y_coord SMALLINT UNSIGNED NOT NULL,
+                                    world SMALLINT UNSIGNED NOT NULL,
+                                    npc_id MEDIUMINT UNSIGNED NOT NULL,
+                                    count INT UNSIGNED NOT NULL DEFAULT 0,
+                                    PRIMARY KEY (player_id,%s plane, region_id, x_coord, y_coord, world, npc_id)
+                                )
+                                """;
+        String xpColumns = "player_id, plane, x_coord, y_coord, world, skill_id, xp, count";
+        String killColumns = "player_id, plane, x_coord, y_coord, world, npc_id, count";
+
+        addRegion(connection, tableNameXp, xpDefinition.formatted("", ""), xpColumns);
+        addRegion(connection, tableNameKills, killDefinition.formatted("", ""), killColumns);
+
+        // The time-bucketed copies only exist if the plugin has run since they were introduced.
+        for (TimeBucket bucket : TimeBucket.values()) {
+            String bucketColumn = "\n    bucket " + bucket.getColumnType() + " NOT NULL,";
+
+            addRegion(connection, bucket.tableName(tableNameXp), xpDefinition.formatted(bucketColumn, " bucket,"),
+                      "bucket, " + xpColumns);
+            addRegion(connection, bucket.tableName(tableNameKills),
+                      killDefinition.formatted(bucketColumn, " bucket,"), "bucket, " + killColumns);
+        }
+    }
+
+    /**
+     * Rebuilds a table with a region column, copying across the given columns and working out each row's region from
+     * its coordinates.
+     */
+    private void addRegion(Connection connection, String tableName, String definition, String columns)
+            throws SQLException {
+        String tableNameOld = tableName + "_v4";
+        String regionId = dialect.integerDivide("x_coord", "64") + " * 256 + " +
+                          dialect.integerDivide("y_coord", "64");
+
+        rebuild(connection, tableName, tableNameOld, definition + dialect.clusteredTableOptions(),
+                "INSERT INTO " + tableName + " (" + columns + ", region_id)" +
+                " SELECT " + columns + ", " + regionId + " FROM " + tableNameOld);
+    }
+
+    /**
+     * Moves a table aside and recreates it from the given definition, then runs the statements which copy its rows
+     * back before dropping the old table. Nothing is done if the table doesn't exist.
+     */
+    private void rebuild(Connection connection, String tableName, String tableNameOld, String definition,
+                         String ... copyStatements) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            if (!tableExists(connection, tableNameOld)) {
+                if (!tableExists(connection, tableName)) {
+                    return;
+                }
+
+                statement.execute("ALTER TABLE " + tableName + " RENAME TO " + tableNameOld);
+            }
+
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableName + definition);
+
+            inTransaction(connection, () -> {
+                // Start from empty in case an earlier attempt copied some of the rows.
+                statement.execute("DELETE FROM " + tableName);
+
+                for (String copyStatement : copyStatements) {
+                    statement.execute(copyStatement);
+                }
+            });
+
+            statement.execute("DROP TABLE " + tableNameOld);
+        }
+    }
+
+    /**
+     * Version 4 adds each player's total kills of each NPC, so that one NPC's kills can be read without summing
+     * every tile.
+     */
+    private void summarizeNpcKills(Connection connection) throws SQLException {
+        if (!tableExists(connection, tableNameKills)) {
+            return;
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameNpcKills +
+                              """
+                              (
+                                  player_id INT UNSIGNED NOT NULL,
+                                  npc_id MEDIUMINT UNSIGNED NOT NULL,
+                                  count INT UNSIGNED NOT NULL DEFAULT 0,
+                                  PRIMARY KEY (player_id, npc_id)
+                              )
+                              """);
+
+            inTransaction(connection, () -> {
+                // Start from empty in case an earlier attempt copied some of the rows.
+                statement.execute("DELETE FROM " + tableNameNpcKills);
+                statement.execute("INSERT INTO " + tableNameNpcKills + " (player_id, npc_id, count)" +
+                                  " SELECT player_id, npc_id, SUM(count) FROM " + tableNameKills +
+                                  " GROUP BY player_id, npc_id");
+            });
+        }
+    }
+
+    /**
+     * Version 6 adds the clan tables, holding the totals of every player together, and fills them in from the
+     * players' tables.
+     */
+    private void addClanTotals(Connection connection) throws SQLException {
+        if (!tableExists(connection, tableNameKills)) {
+            return;
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameClanKills +
+                              """
+                              (
+                                  plane TINYINT UNSIGNED NOT NULL,
+                                  region_id SMALLINT UNSIGNED NOT NULL,
+                                  x_coord SMALLINT UNSIGNED NOT NULL,
+                                  y_coord SMALLINT UNSIGNED NOT NULL,
+                                  world SMALLINT UNSIGNED NOT NULL,
+                                  npc_id MEDIUMINT UNSIGNED NOT NULL,
+                                  count INT UNSIGNED NOT NULL DEFAULT 0,
+                                  PRIMARY KEY (plane, region_id, x_coord, y_coord, world, npc_id)
+                              )
+                              """ + dialect.clusteredTableOptions());
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameClanNpcKills +
+                              """
+                              (
+                                  npc_id MEDIUMINT UNSIGNED NOT NULL PRIMARY KEY,
+                                  count INT UNSIGNED NOT NULL DEFAULT 0
+                              )
+                              """);
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameClanLoot +
+                              """
+                              (
+                                  npc_id MEDIUMINT UNSIGNED NOT NULL,
+                                  item_id MEDIUMINT UNSIGNED NOT NULL,
+                                  quantity INT UNSIGNED NOT NULL,
+                                  PRIMARY KEY (npc_id, item_id)
+                              )
+                              """);
+            statement.execute("CREATE TABLE IF NOT EXISTS " + tableNameClanXp +
+                              """
+                              (
+                                  plane TINYINT UNSIGNED NOT NULL,
+                                  region_id SMALLINT UNSIGNED NOT NULL,
+                                  x_coord SMALLINT UNSIGNED NOT NULL,
+                                  y_coord SMALLINT UNSIGNED NOT NULL,
+                                  world SMALLINT UNSIGNED NOT NULL,
+                                  skill_id TINYINT UNSIGNED NOT NULL,
+                                  xp INT UNSIGNED NOT NULL DEFAULT 0,
+                                  count INT UNSIGNED NOT NULL DEFAULT 0,
+                                  PRIMARY KEY (plane, region_id, x_coord, y_coord, world, skill_id)
+                              )
+                              """ + dialect.clusteredTableOptions());
+
+            inTransaction(connection, () -> {
+                sumInto(statement, tableNameClanKills, tableNameKills,
+                        "plane, region_id, x_coord, y_coord, world, npc_id", "count");
+                sumInto(statement, tableNameClanNpcKills, tableNameNpcKills, "npc_id", "count");
+                sumInto(statement, tableNameClanLoot, tableNameLoot, "npc_id, item_id", "quantity");
+                sumInto(statement, tableNameClanXp, tableNameXp,
+                        "plane, region_id, x_coord, y_coord, world, skill_id", "xp", "count");
+            });
+        }
+    }
+
+    /**
+     * Version 7 records when each batch sent on from an outbox was applied, so that the ids of old batches can be
+     * dropped. Batches applied before now are treated as the oldest of all.
+     */
+    private void timestampAppliedBatches(Connection connection) throws SQLException {
+        if (!tableExists(connection, tableNameAppliedBatches)
+            || columnExists(connection, tableNameAppliedBatches, "applied_at")) {
+            return;
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE " + tableNameAppliedBatches +
+                              " ADD COLUMN applied_at BIGINT NOT NULL DEFAULT 0");
+        }
+    }
+
+    /**
+     * Replaces the rows of one table with the totals of another's, grouped by the given columns.
+     */
+    private static void sumInto(Statement statement, String tableName, String sourceTableName, String groupColumns,
+                                String ... sumColumns) throws SQLException {
+        // Start from empty in case an earlier attempt copied some of the rows.
+        statement.execute("DELETE FROM " + tableName);
+        statement.execute("INSERT INTO " + tableName + " (" + groupColumns + ", " + String.join(", ", sumColumns) +
+                          ") SELECT " + groupColumns + ", " +
+                          Arrays.stream(sumColumns).map(column -> "SUM(" + column + ")")
+                                .collect(Collectors.joining(", ")) +
+                          " FROM " + sourceTableName + " GROUP BY " + groupColumns);
+    }
+
+    private int readVersion(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT MAX(version) FROM " + tableNameVersion)) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    private void writeVersion(Connection connection, int version) throws SQLException {
+        inTransaction(connection, () -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("DELETE FROM " + tableNameVersion);
+                statement.execute("INSERT INTO " + tableNameVersion + " (version) VALUES (" + version + ")");
+            }
+        });
+    }
+
+    /**
+     * Looks only in the connection's own database. Without a catalog, MySQL searches every database on the server.
+     */
+    private static boolean tableExists(Connection connection, String tableName) throws SQLException {
+        try (ResultSet resultSet = connection.getMetaData().getTables(connection.getCatalog(), null, tableName,
+                                                                      null)) {
+            return resultSet.next();
+        }
+    }
+
+    private static boolean columnExists(Connection connection, String tableName, String columnName)
+            throws SQLException {
+        try (ResultSet resultSet = connection.getMetaData().getColumns(connection.getCatalog(), null, tableName,
+                                                                       columnName)) {
+            return resultSet.next();
+        }
+    }
+
+    private static void inTransaction(Connection connection, SqlRunnable runnable) throws SQLException {
+        connection.setAutoCommit(false);
+
+        try {
+            runnable.run();
+            connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    @FunctionalInterface
+    private interface SqlRunnable {
+
+        void run() throws SQLException;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Holds the last complete result of an asynchronous query. Readers always see a whole result, and keep seeing the old
+ * one while a refresh is in flight.
+ */
+@Slf4j
+class Snapshot<T> {
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private volatile T value;
+    private volatile int version;
+
+    Snapshot(T initialValue) {
+        value = initialValue;
+    }
+
+    T get() {
+        return value;
+    }
+
+    /**
+     * Returns a number which changes whenever the value is replaced. Read it before the value, so that a stale
+     * version is never paired with a newer value.
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Starts the query unless a previous refresh is still in flight, returning whether it was started. The result
+     * replaces the current value once the query completes.
+     */
+    boolean refresh(Supplier<CompletableFuture<T>> query) {
+        if (!refreshing.compareAndSet(false, true)) {
+            return false;
+        }
+
+        CompletableFuture<T> future;
+
+        try {
+            future = query.get();
+        } catch (RuntimeException e) {
+            refreshing.set(false);
+            throw e;
+        }
+
+        future.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                log.warn("Failed to refresh snapshot", throwable);
+            } else if (result != null) {
+                value = result;
+                version++;
+            }
+
+            refreshing.set(false);
+        });
+
+        return true;
+    }
+}
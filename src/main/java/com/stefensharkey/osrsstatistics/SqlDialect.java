@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * SQL which differs between the supported database servers.
+ */
+enum SqlDialect {
+
+    SQLITE {
+        @Override
+        String onConflictIncrement(String tableName, List<String> keyColumns, List<String> incrementColumns) {
+            return " ON CONFLICT (" + String.join(", ", keyColumns) + ") DO UPDATE SET " +
+                   incrementColumns.stream()
+                                   .map(column -> column + " = " + column + " + excluded." + column)
+                                   .collect(Collectors.joining(", "));
+        }
+
+        @Override
+        String integerDivide(String dividend, String divisor) {
+            return "(" + dividend + " / " + divisor + ")";
+        }
+
+        @Override
+        String insertIgnore() {
+            return "INSERT OR IGNORE INTO ";
+        }
+
+        @Override
+        String autoIncrementPrimaryKey(String column) {
+            // An INTEGER PRIMARY KEY aliases the rowid, which SQLite assigns automatically.
+            return column + " INTEGER PRIMARY KEY";
+        }
+
+        @Override
+        String clusteredTableOptions() {
+            return " WITHOUT ROWID";
+        }
+    },
+    MYSQL {
+        @Override
+        String onConflictIncrement(String tableName, List<String> keyColumns, List<String> incrementColumns) {
+            // When the rows come from a query, an unqualified column is ambiguous if the query's table has one of the
+            // same name, so the existing row's columns are named through their table.
+            return " ON DUPLICATE KEY UPDATE " +
+                   incrementColumns.stream()
+                                   .map(column -> tableName + "." + column + " = " + tableName + "." + column +
+                                                  " + VALUES(" + column + ")")
+                                   .collect(Collectors.joining(", "));
+        }
+
+        @Override
+        String integerDivide(String dividend, String divisor) {
+            // MySQL's / always produces a decimal.
+            return "(" + dividend + " DIV " + divisor + ")";
+        }
+
+        @Override
+        String insertIgnore() {
+            return "INSERT IGNORE INTO ";
+        }
+
+        @Override
+        String autoIncrementPrimaryKey(String column) {
+            return column + " INT UNSIGNED NOT NULL AUTO_INCREMENT PRIMARY KEY";
+        }
+
+        @Override
+        String clusteredTableOptions() {
+            // InnoDB always stores rows in primary key order.
+            return "";
+        }
+    };
+
+    /**
+     * Builds a single statement which inserts a row, or adds the given values onto the existing row if one already
+     * exists with the same key. Parameters are the key columns followed by the increment columns, in order.
+     */
+    String incrementUpsert(String tableName, List<String> keyColumns, List<String> incrementColumns) {
+        int numColumns = keyColumns.size() + incrementColumns.size();
+
+        return insertInto(tableName, keyColumns, incrementColumns) +
+               " VALUES (" + String.join(", ", Collections.nCopies(numColumns, "?")) + ")" +
+               onConflictIncrement(tableName, keyColumns, incrementColumns);
+    }
+
+    /**
+     * Like {@link #incrementUpsert}, but takes its rows from a query instead of parameters. The query must have a
+     * WHERE clause, as SQLite can otherwise mistake the conflict clause for part of a join.
+     */
+    String incrementUpsertSelect(String tableName, List<String> keyColumns, List<String> incrementColumns,
+                                 String select) {
+        return insertInto(tableName, keyColumns, incrementColumns) + " " + select +
+               onConflictIncrement(tableName, keyColumns, incrementColumns);
+    }
+
+    abstract String onConflictIncrement(String tableName, List<String> keyColumns, List<String> incrementColumns);
+
+    /**
+     * Returns the start of an insert statement which skips rows that would duplicate an existing key.
+     */
+    abstract String insertIgnore();
+
+    /**
+     * Returns the definition of an integer primary key column which is assigned automatically on insert.
+     */
+    abstract String autoIncrementPrimaryKey(String column);
+
+    /**
+     * Returns the options which make a table store its rows in primary key order, so that reading a range of the key
+     * needs no lookups into a separate index.
+     */
+    abstract String clusteredTableOptions();
+
+    /**
+     * Returns an expression dividing one integer by another, discarding any remainder.
+     */
+    abstract String integerDivide(String dividend, String divisor);
+
+    private static String insertInto(String tableName, List<String> keyColumns, List<String> incrementColumns) {
+        return "INSERT INTO " + tableName +
+               " (" + String.join(", ", keyColumns) + ", " + String.join(", ", incrementColumns) + ")";
+    }
+}
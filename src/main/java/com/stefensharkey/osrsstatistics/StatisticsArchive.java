@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads and writes snapshots of a player's statistics, for moving them between databases or keeping them as a backup.
+ * Both directions stream the rows a block at a time, so memory use doesn't grow with the number of rows.
+ *
+ * <p>A snapshot starts with {@link #MAGIC} and {@link #VERSION}, followed by a deflated body holding each table in
+ * turn: its name and column names, then blocks of up to {@link #BLOCK_ROWS} rows, then an empty block. The body ends
+ * with an empty table name. A block stores its row count and then each column in turn, every value written as the
+ * zigzag-encoded variable length difference from the value above it. Rows are written in primary key order, so the
+ * leading columns mostly repeat and take a single byte per value.
+ */
+final class StatisticsArchive {
+
+    static final int BLOCK_ROWS = 4096;
+
+    private static final int MAGIC = 0x4F535353;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private StatisticsArchive() {
+    }
+
+    /**
+     * Writes every row the player has in {@link Database#SNAPSHOT_TABLES} to the file, returning the number of rows
+     * written. The file is only replaced once the snapshot is complete.
+     */
+    static long export(Database database, String username, Path file) throws IOException {
+        Path partFile = file.resolveSibling(file.getFileName() + ".part");
+        long rows = 0;
+
+        try (OutputStream fileOutput = new BufferedOutputStream(Files.newOutputStream(partFile), BUFFER_SIZE)) {
+            DataOutputStream header = new DataOutputStream(fileOutput);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+
+            DataOutputStream output = new DataOutputStream(new DeflaterOutputStream(fileOutput));
+
+            for (Database.SnapshotTable table : Database.SNAPSHOT_TABLES) {
+                BlockWriter writer = new BlockWriter(output, table);
+
+                try {
+                    database.exportSnapshotRows(username, table, writer::add);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+
+                rows += writer.finish();
+            }
+
+            output.writeUTF("");
+            output.close();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(partFile);
+            throw e;
+        }
+
+        Files.move(partFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return rows;
+    }
+
+    /**
+     * Replaces the player's statistics with those in the snapshot, returning the number of rows imported.
+     */
+    static long restore(Database database, String username, Path file) throws IOException {
+        try (Reader reader = Reader.open(file)) {
+            return database.importSnapshot(username, reader);
+        }
+    }
+
+    /**
+     * Collects the rows of one table into blocks, writing each block out once it is full.
+     */
+    private static final class BlockWriter {
+
+        private final DataOutput output;
+        private final long[][] columns;
+
+        private int blockRows;
+        private long rows;
+
+        private BlockWriter(DataOutput output, Database.SnapshotTable table) throws IOException {
+            this.output = output;
+
+            List<String> columnNames = table.columns();
+            columns = new long[columnNames.size()][BLOCK_ROWS];
+
+            output.writeUTF(table.name());
+            writeVarLong(output, columnNames.size());
+
+            for (String columnName : columnNames) {
+                output.writeUTF(columnName);
+            }
+        }
+
+        private void add(ResultSet row) throws SQLException {
+            for (int column = 0; column < columns.length; column++) {
+                columns[column][blockRows] = row.getLong(column + 1);
+            }
+
+            if (++blockRows == BLOCK_ROWS) {
+                try {
+                    writeBlock();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        private long finish() throws IOException {
+            if (blockRows > 0) {
+                writeBlock();
+            }
+
+            writeVarLong(output, 0);
+            return rows;
+        }
+
+        private void writeBlock() throws IOException {
+            writeVarLong(output, blockRows);
+
+            for (long[] column : columns) {
+                long previous = 0;
+
+                for (int row = 0; row < blockRows; row++) {
+                    long delta = column[row] - previous;
+                    writeVarLong(output, delta << 1 ^ delta >> 63);
+                    previous = column[row];
+                }
+            }
+
+            rows += blockRows;
+            blockRows = 0;
+        }
+    }
+
+    /**
+     * Reads a snapshot back a table and a block at a time.
+     */
+    static final class Reader implements AutoCloseable {
+
+        private final DataInputStream input;
+
+        private long[][] columns;
+
+        private Reader(DataInputStream input) {
+            this.input = input;
+        }
+
+        static Reader open(Path file) throws IOException {
+            InputStream fileInput = new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE);
+
+            try {
+                DataInputStream header = new DataInputStream(fileInput);
+
+                if (header.readInt() != MAGIC) {
+                    throw new IOException(file + " is not a statistics snapshot");
+                }
+
+                int version = header.readInt();
+
+                if (version != VERSION) {
+                    throw new IOException("Unsupported snapshot version " + version);
+                }
+
+                return new Reader(new DataInputStream(new InflaterInputStream(fileInput)));
+            } catch (IOException | RuntimeException e) {
+                fileInput.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Moves on to the next table, returning it, or null once every table has been read. Any blocks left in the
+         * previous table must have been read first.
+         */
+        Database.SnapshotTable nextTable() throws IOException {
+            String name = input.readUTF();
+
+            if (name.isEmpty()) {
+                return null;
+            }
+
+            Database.SnapshotTable table = findTable(name);
+            int numColumns = (int) readVarLong(input);
+            List<String> columnNames = new ArrayList<>(numColumns);
+
+            for (int column = 0; column < numColumns; column++) {
+                columnNames.add(input.readUTF());
+            }
+
+            if (!columnNames.equals(table.columns())) {
+                throw new IOException("Snapshot columns " + columnNames + " don't match table " + name);
+            }
+
+            columns = new long[numColumns][BLOCK_ROWS];
+            return table;
+        }
+
+        /**
+         * Reads the next block of the current table, returning its number of rows, or 0 once the table has been
+         * read.
+         */
+        int nextBlock() throws IOException {
+            long rows = readVarLong(input);
+
+            if (rows > BLOCK_ROWS) {
+                throw new IOException("Snapshot block of " + rows + " rows is too large");
+            }
+
+            for (long[] column : columns) {
+                long previous = 0;
+
+                for (int row = 0; row < rows; row++) {
+                    long value = readVarLong(input);
+                    previous += value >>> 1 ^ -(value & 1);
+                    column[row] = previous;
+                }
+            }
+
+            return (int) rows;
+        }
+
+        /**
+         * Returns the values of one column of the block last read.
+         */
+        long[] getColumn(int column) {
+            return columns[column];
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    private static Database.SnapshotTable findTable(String name) throws IOException {
+        for (Database.SnapshotTable table : Database.SNAPSHOT_TABLES) {
+            if (table.name().equals(name)) {
+                return table;
+            }
+        }
+
+        throw new IOException("Unknown table in snapshot: " + name);
+    }
+
+    private static void writeVarLong(DataOutput output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        output.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInput input) throws IOException {
+        long value = 0;
+
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = input.readByte();
+            value |= (long) (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed variable length value in snapshot");
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import net.runelite.api.Skill;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Merges captured statistics by their primary key and hour, so that repeated events on the same row are written as one
+ * increment.
+ */
+class StatisticsBuffer {
+
+    record KillKey(String username, int x, int y, int plane, int world, int npcId, int hour) {
+    }
+
+    record XpKey(String username, int x, int y, int plane, int world, Skill skill, int hour) {
+    }
+
+    record LootKey(String username, int npcId, int itemId, int hour) {
+    }
+
+    private final Map<KillKey, Integer> kills = new HashMap<>();
+    // Each value holds the XP total followed by the number of XP drops.
+    private final Map<XpKey, int[]> xp = new HashMap<>();
+    private final Map<LootKey, Integer> loot = new HashMap<>();
+    private long journalSequence = -1;
+
+    void add(StatisticsEvent event) {
+        int hour = TimeBucket.HOURLY.of(event.time());
+
+        if (event instanceof StatisticsEvent.Kill kill) {
+            addKills(new KillKey(kill.username(), kill.x(), kill.y(), kill.plane(), kill.world(), kill.npcId(), hour),
+                     1);
+        } else if (event instanceof StatisticsEvent.Xp xpEvent) {
+            addXp(new XpKey(xpEvent.username(), xpEvent.x(), xpEvent.y(), xpEvent.plane(), xpEvent.world(),
+                            xpEvent.skill(), hour),
+                  xpEvent.delta(), 1);
+        } else if (event instanceof StatisticsEvent.Loot lootEvent) {
+            addLoot(new LootKey(lootEvent.username(), lootEvent.npcId(), lootEvent.itemId(), hour),
+                    lootEvent.quantity());
+        }
+    }
+
+    void addKills(KillKey key, int count) {
+        kills.merge(key, count, Integer::sum);
+    }
+
+    void addXp(XpKey key, int xpGained, int count) {
+        int[] values = xp.computeIfAbsent(key, newKey -> new int[2]);
+        values[0] += xpGained;
+        values[1] += count;
+    }
+
+    void addLoot(LootKey key, int quantity) {
+        loot.merge(key, quantity, Integer::sum);
+    }
+
+    /**
+     * Records that every journaled event up to and including the given sequence number is held in this buffer.
+     */
+    void setJournalSequence(long journalSequence) {
+        this.journalSequence = journalSequence;
+    }
+
+    /**
+     * Returns the sequence number of the last journaled event held in this buffer, or -1 if there is none.
+     */
+    long getJournalSequence() {
+        return journalSequence;
+    }
+
+    Map<KillKey, Integer> getKills() {
+        return kills;
+    }
+
+    Map<XpKey, int[]> getXp() {
+        return xp;
+    }
+
+    Map<LootKey, Integer> getLoot() {
+        return loot;
+    }
+
+    /**
+     * Returns the number of distinct rows which would be written by a flush.
+     */
+    int size() {
+        return kills.size() + xp.size() + loot.size();
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    void clear() {
+        kills.clear();
+        xp.clear();
+        loot.clear();
+        journalSequence = -1;
+    }
+}
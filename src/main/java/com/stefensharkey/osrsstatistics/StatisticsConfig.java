@@ -173,4 +173,94 @@ public interface StatisticsConfig extends Config {
     default boolean isNpcTooltipEnabled() {
         return true;
     }
+
+    @ConfigItem(
+            keyName = "writerqueuecapacity",
+            name = "Write Queue Capacity",
+            description = "Maximum number of events waiting in memory to be written. Further events are read back from the journal.",
+            position = 14
+    )
+    default int writerQueueCapacity() {
+        return 4096;
+    }
+
+    @ConfigItem(
+            keyName = "writerbatchsize",
+            name = "Write Batch Size",
+            description = "Number of distinct rows to gather before writing them without waiting for the flush interval.",
+            position = 15
+    )
+    default int writerBatchSize() {
+        return 256;
+    }
+
+    @ConfigItem(
+            keyName = "writerflushinterval",
+            name = "Write Flush Interval",
+            description = "Milliseconds to gather and merge events for before writing them to the database.",
+            position = 16
+    )
+    default int writerFlushInterval() {
+        return 10000;
+    }
+
+    @ConfigItem(
+            keyName = "offlinemode",
+            name = "Offline Mode",
+            description = "Store statistics locally whilst a MySQL or MariaDB server is unreachable, and send them once it is back.",
+            position = 17
+    )
+    default boolean isOfflineModeEnabled() {
+        return true;
+    }
+
+    @ConfigItem(
+            keyName = "replicaenabled",
+            name = "Local Read Cache",
+            description = "Keep a local copy of statistics from a MySQL or MariaDB server, and draw overlays from it.",
+            position = 18
+    )
+    default boolean isReplicaEnabled() {
+        return false;
+    }
+
+    @ConfigItem(
+            keyName = "replicarefreshinterval",
+            name = "Local Read Cache Refresh Interval",
+            description = "Minutes between copying the latest statistics from the server into the local read cache.",
+            position = 19
+    )
+    default int replicaRefreshInterval() {
+        return 15;
+    }
+
+    @ConfigItem(
+            keyName = "metricsoverlay",
+            name = "Performance Metrics",
+            description = "Show how long the plugin's database calls and overlays take, and how many events it has handled.",
+            position = 20
+    )
+    default boolean isMetricsOverlayEnabled() {
+        return false;
+    }
+
+    @ConfigItem(
+            keyName = "clanaggregate",
+            name = "Show Clan Totals",
+            description = "Show the combined statistics of every player in the database instead of your own.",
+            position = 21
+    )
+    default boolean isClanAggregateEnabled() {
+        return false;
+    }
+
+    @ConfigItem(
+            keyName = "rateoverlay",
+            name = "XP and Kill Rates",
+            description = "Show XP per hour for each skill and kills per hour for each NPC over the last five minutes, the last hour and the session.",
+            position = 22
+    )
+    default boolean isRateOverlayEnabled() {
+        return false;
+    }
 }
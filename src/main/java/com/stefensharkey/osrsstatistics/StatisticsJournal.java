@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stefensharkey.osrsstatistics;
+
+import lombok.extern.slf4j.Slf4j;
+import net.runelite.api.Skill;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of captured events, kept in memory-mapped files so that an append is only a copy into memory
+ * which the operating system keeps even if the client crashes. Every event is given a sequence number, and the
+ * database records the last sequence number it has written, so events that never reached the database can be
+ * replayed on the next start.
+ *
+ * <p>Events are stored as fixed size records in segments of {@link #SEGMENT_RECORDS} records. A segment is deleted
+ * once every record in it has been written to the database.
+ *
+ * <p>A journal is locked by the client which has it open. Each further client running at the same time opens a
+ * numbered journal of its own alongside the first, since two clients appending to one journal would overwrite each
+ * other's events.
+ */
+@Slf4j
+class StatisticsJournal implements AutoCloseable {
+
+    record Entry(long sequence, StatisticsEvent event) {
+    }
+
+    private static final int RECORD_SIZE = 64;
+    private static final int SEGMENT_RECORDS = 16384;
+    private static final int SEGMENT_SIZE = RECORD_SIZE * SEGMENT_RECORDS;
+
+    private static final String ID_FILE_NAME = "journal.id";
+    private static final String LOCK_FILE_NAME = "journal.lock";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    // Record layout. The type is written last, so a record with no type was never completely written.
+    private static final int TYPE_OFFSET = 0;
+    private static final int PLANE_OFFSET = 1;
+    private static final int WORLD_OFFSET = 2;
+    private static final int CRC_OFFSET = 4;
+    private static final int TIME_OFFSET = 8;
+    private static final int X_OFFSET = 16;
+    private static final int Y_OFFSET = 18;
+    private static final int ID_OFFSET = 20;
+    private static final int ITEM_ID_OFFSET = 24;
+    private static final int VALUE_OFFSET = 28;
+    private static final int USERNAME_LENGTH_OFFSET = 32;
+    private static final int USERNAME_OFFSET = 33;
+    private static final int MAX_USERNAME_BYTES = RECORD_SIZE - USERNAME_OFFSET;
+
+    private static final byte TYPE_KILL = 1;
+    private static final byte TYPE_XP = 2;
+    private static final byte TYPE_LOOT = 3;
+
+    // Directories of the journals open in this process. A second lock taken by the same process would fail, and
+    // closing the channel it was tried through could release the first.
+    private static final Set<Path> OPEN_DIRECTORIES = ConcurrentHashMap.newKeySet();
+
+    private final Path directory;
+    private final int instance;
+    private final FileChannel lockChannel;
+    private final UUID id;
+    // Every segment which hasn't been deleted yet, by segment number.
+    private final Map<Long, MappedByteBuffer> segments = new ConcurrentSkipListMap<>();
+    private final byte[] appendRecord = new byte[RECORD_SIZE];
+    private final CRC32 appendCrc = new CRC32();
+
+    private MappedByteBuffer activeSegment;
+    private volatile long activeSegmentNumber;
+    private volatile long nextSequence;
+
+    private StatisticsJournal(Path directory, int instance, FileChannel lockChannel, UUID id) {
+        this.directory = directory;
+        this.instance = instance;
+        this.lockChannel = lockChannel;
+        this.id = id;
+    }
+
+    /**
+     * Opens and locks the journal in the given directory, creating it if necessary, and finds where the last run
+     * stopped appending. If another client has the journal open, the first numbered journal alongside it which isn't
+     * open is used instead.
+     */
+    static StatisticsJournal open(Path directory) throws IOException {
+        for (int instance = 0; ; instance++) {
+            Path instanceDirectory = instancePath(directory, instance).toAbsolutePath().normalize();
+
+            if (!OPEN_DIRECTORIES.add(instanceDirectory)) {
+                continue;
+            }
+
+            FileChannel lockChannel = null;
+
+            try {
+                Files.createDirectories(instanceDirectory);
+                lockChannel = FileChannel.open(instanceDirectory.resolve(LOCK_FILE_NAME), StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE);
+
+                if (tryLock(lockChannel)) {
+                    return open(instanceDirectory, instance, lockChannel);
+                }
+
+                log.info("Journal {} is in use by another client", instanceDirectory);
+                lockChannel.close();
+                OPEN_DIRECTORIES.remove(instanceDirectory);
+            } catch (IOException | RuntimeException e) {
+                if (lockChannel != null) {
+                    lockChannel.close();
+                }
+
+                OPEN_DIRECTORIES.remove(instanceDirectory);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns the path of the given numbered instance of a file or directory. The first instance keeps the path as it
+     * is, so that a lone client uses the same files it always has.
+     */
+    static Path instancePath(Path path, int instance) {
+        return instance == 0 ? path : path.resolveSibling(path.getFileName() + "-" + instance);
+    }
+
+    private static boolean tryLock(FileChannel lockChannel) throws IOException {
+        try {
+            return lockChannel.tryLock() != null;
+        } catch (OverlappingFileLockException e) {
+            return false;
+        }
+    }
+
+    private static StatisticsJournal open(Path directory, int instance, FileChannel lockChannel) throws IOException {
+        Path idFile = directory.resolve(ID_FILE_NAME);
+        UUID id;
+
+        if (Files.exists(idFile)) {
+            id = UUID.fromString(Files.readString(idFile).trim());
+        } else {
+            id = UUID.randomUUID();
+            Files.writeString(idFile, id.toString());
+        }
+
+        StatisticsJournal journal = new StatisticsJournal(directory, instance, lockChannel, id);
+        List<Long> segmentNumbers;
+
+        try (Stream<Path> files = Files.list(directory)) {
+            segmentNumbers = files.map(file -> file.getFileName().toString())
+                                  .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                                  .map(name -> Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                                                             name.length() - SEGMENT_SUFFIX.length())))
+                                  .sorted()
+                                  .collect(Collectors.toList());
+        }
+
+        for (long segmentNumber : segmentNumbers) {
+            journal.segments.put(segmentNumber, journal.map(segmentNumber));
+        }
+
+        long activeSegmentNumber = segmentNumbers.isEmpty() ? 0 : segmentNumbers.get(segmentNumbers.size() - 1);
+        journal.activate(activeSegmentNumber);
+
+        int index = 0;
+
+        while (index < SEGMENT_RECORDS && journal.activeSegment.get(index * RECORD_SIZE + TYPE_OFFSET) != 0) {
+            index++;
+        }
+
+        journal.nextSequence = activeSegmentNumber * SEGMENT_RECORDS + index;
+        return journal;
+    }
+
+    UUID getId() {
+        return id;
+    }
+
+    /**
+     * Returns which of the numbered journals this is, where 0 is the one in the directory the journal was opened with.
+     */
+    int getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the sequence number the next appended event will be given.
+     */
+    long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Appends an event, returning its sequence number, or -1 if the event couldn't be journaled. Events which
+     * couldn't be journaled can still be written to the database, but won't survive a crash.
+     */
+    synchronized long append(StatisticsEvent event) {
+        byte[] username = event.username().getBytes(StandardCharsets.UTF_8);
+
+        if (username.length > MAX_USERNAME_BYTES) {
+            log.warn("Username is too long to journal: {}", event.username());
+            return -1;
+        }
+
+        Arrays.fill(appendRecord, (byte) 0);
+        ByteBuffer record = ByteBuffer.wrap(appendRecord);
+
+        if (event instanceof StatisticsEvent.Kill kill) {
+            record.put(TYPE_OFFSET, TYPE_KILL);
+            putLocation(record, kill.x(), kill.y(), kill.plane(), kill.world());
+            record.putInt(ID_OFFSET, kill.npcId());
+        } else if (event instanceof StatisticsEvent.Xp xp) {
+            record.put(TYPE_OFFSET, TYPE_XP);
+            putLocation(record, xp.x(), xp.y(), xp.plane(), xp.world());
+            record.putInt(ID_OFFSET, xp.skill().ordinal());
+            record.putInt(VALUE_OFFSET, xp.delta());
+        } else if (event instanceof StatisticsEvent.Loot loot) {
+            record.put(TYPE_OFFSET, TYPE_LOOT);
+            record.putInt(ID_OFFSET, loot.npcId());
+            record.putInt(ITEM_ID_OFFSET, loot.itemId());
+            record.putInt(VALUE_OFFSET, loot.quantity());
+        } else {
+            throw new IllegalArgumentException("Unknown event " + event);
+        }
+
+        record.putLong(TIME_OFFSET, event.time());
+        record.put(USERNAME_LENGTH_OFFSET, (byte) username.length);
+        record.put(USERNAME_OFFSET, username);
+
+        appendCrc.reset();
+        appendCrc.update(appendRecord);
+        record.putInt(CRC_OFFSET, (int) appendCrc.getValue());
+
+        try {
+            if (nextSequence == (activeSegmentNumber + 1) * SEGMENT_RECORDS) {
+                activeSegment.force();
+                activate(activeSegmentNumber + 1);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to start a new journal segment", e);
+            return -1;
+        }
+
+        int offset = (int) (nextSequence % SEGMENT_RECORDS) * RECORD_SIZE;
+        activeSegment.put(offset + PLANE_OFFSET, appendRecord, PLANE_OFFSET, RECORD_SIZE - PLANE_OFFSET);
+        activeSegment.put(offset + TYPE_OFFSET, appendRecord[TYPE_OFFSET]);
+
+        return nextSequence++;
+    }
+
+    /**
+     * Reads back an appended event, or returns null if it was never completely written or has already been deleted.
+     */
+    StatisticsEvent read(long sequence) {
+        MappedByteBuffer segment = segments.get(sequence / SEGMENT_RECORDS);
+
+        if (segment == null || sequence >= nextSequence) {
+            return null;
+        }
+
+        byte[] bytes = new byte[RECORD_SIZE];
+        segment.get((int) (sequence % SEGMENT_RECORDS) * RECORD_SIZE, bytes);
+
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        int crc = record.getInt(CRC_OFFSET);
+        record.putInt(CRC_OFFSET, 0);
+
+        CRC32 expectedCrc = new CRC32();
+        expectedCrc.update(bytes);
+
+        if (crc != (int) expectedCrc.getValue()) {
+            log.warn("Skipping damaged journal record {}", sequence);
+            return null;
+        }
+
+        String username = new String(bytes, USERNAME_OFFSET, record.get(USERNAME_LENGTH_OFFSET),
+                                     StandardCharsets.UTF_8);
+        int x = Short.toUnsignedInt(record.getShort(X_OFFSET));
+        int y = Short.toUnsignedInt(record.getShort(Y_OFFSET));
+        int plane = record.get(PLANE_OFFSET);
+        int world = Short.toUnsignedInt(record.getShort(WORLD_OFFSET));
+        long time = record.getLong(TIME_OFFSET);
+
+        return switch (record.get(TYPE_OFFSET)) {
+            case TYPE_KILL -> new StatisticsEvent.Kill(username, x, y, plane, world, record.getInt(ID_OFFSET), time);
+            case TYPE_XP -> new StatisticsEvent.Xp(username, x, y, plane, world,
+                                                   Skill.values()[record.getInt(ID_OFFSET)],
+                                                   record.getInt(VALUE_OFFSET), time);
+            case TYPE_LOOT -> new StatisticsEvent.Loot(username, record.getInt(ID_OFFSET),
+                                                       record.getInt(ITEM_ID_OFFSET), record.getInt(VALUE_OFFSET),
+                                                       time);
+            default -> null;
+        };
+    }
+
+    /**
+     * Deletes every segment whose records have all been written to the database, up to and including the given
+     * sequence number. The segment being appended to is always kept.
+     */
+    void release(long checkpoint) {
+        for (long segmentNumber : segments.keySet()) {
+            if (segmentNumber >= activeSegmentNumber || (segmentNumber + 1) * SEGMENT_RECORDS - 1 > checkpoint) {
+                break;
+            }
+
+            segments.remove(segmentNumber);
+
+            try {
+                Files.deleteIfExists(segmentFile(segmentNumber));
+            } catch (IOException e) {
+                // Some platforms refuse to delete a file which is still mapped. It will be tried again at the next
+                // start, after being found to hold nothing new.
+                log.debug("Failed to delete journal segment {}", segmentNumber, e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        activeSegment.force();
+
+        try {
+            // Closing the channel releases the lock.
+            lockChannel.close();
+        } catch (IOException e) {
+            log.warn("Failed to unlock journal {}", directory, e);
+        }
+
+        OPEN_DIRECTORIES.remove(directory);
+    }
+
+    private void activate(long segmentNumber) throws IOException {
+        MappedByteBuffer segment = segments.get(segmentNumber);
+
+        if (segment == null) {
+            segment = map(segmentNumber);
+            segments.put(segmentNumber, segment);
+        }
+
+        activeSegment = segment;
+        activeSegmentNumber = segmentNumber;
+    }
+
+    private MappedByteBuffer map(long segmentNumber) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentFile(segmentNumber), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+    }
+
+    private Path segmentFile(long segmentNumber) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+    }
+
+    private static void putLocation(ByteBuffer record, int x, int y, int plane, int world) {
+        record.putShort(X_OFFSET, (short) x);
+        record.putShort(Y_OFFSET, (short) y);
+        record.put(PLANE_OFFSET, (byte) plane);
+        record.putShort(WORLD_OFFSET, (short) world);
+    }
+}
@@ -3,14 +3,11 @@ package com.stefensharkey.osrsstatistics;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.api.Actor;
 import net.runelite.api.Client;
-import net.runelite.api.Perspective;
 import net.runelite.api.Tile;
-import net.runelite.api.coords.LocalPoint;
 import net.runelite.api.coords.WorldPoint;
 import net.runelite.client.ui.overlay.Overlay;
 import net.runelite.client.ui.overlay.OverlayLayer;
 import net.runelite.client.ui.overlay.OverlayPosition;
-import net.runelite.client.ui.overlay.OverlayUtil;
 import net.runelite.client.ui.overlay.tooltip.Tooltip;
 import net.runelite.client.ui.overlay.tooltip.TooltipManager;
 import net.runelite.client.util.ColorUtil;
@@ -18,10 +15,7 @@ import net.runelite.client.util.ColorUtil;
 import javax.inject.Inject;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
-import java.awt.Polygon;
-import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.Map;
+import java.util.function.LongFunction;
 
 @Slf4j
 public class StatisticsKillOverlay extends Overlay {
@@ -31,8 +25,12 @@ public class StatisticsKillOverlay extends Overlay {
     private final StatisticsConfig config;
     private final TooltipManager tooltipManager;
 
-    private Map<WorldPoint, Map<Integer, Integer>> killCountMap;
-    private LocalDateTime lastUpdated;
+    private final Snapshot<TileStore> killCountSnapshot = new Snapshot<>(TileStore.forKills());
+    private final TileRenderModel renderModel = new TileRenderModel();
+    private final TooltipCache tooltipCache = new TooltipCache();
+    private final LongFunction<Tooltip> tooltipBuilder = this::buildTooltip;
+    private int cacheVersion = -1;
+    private int lastRegionKey = -1;
 
     @Inject
     StatisticsKillOverlay(Client client, StatisticsPlugin plugin, StatisticsConfig config, TooltipManager tooltipManager) {
@@ -42,18 +40,19 @@ public class StatisticsKillOverlay extends Overlay {
         this.plugin = plugin;
         this.config = config;
         this.tooltipManager = tooltipManager;
-        updateMaps();
     }
 
     @Override
     public Dimension render(Graphics2D graphics) {
         if (config.isKillOverlayEnabled()) {
-            updateMaps();
+            try (StatisticsMetrics.Timer timer = plugin.metrics.time("overlay.kill")) {
+                updateMaps();
 
-            renderTiles(graphics);
+                renderTiles(graphics);
 
-            if (config.isKillTooltipEnabled()) {
-                renderTooltip();
+                if (config.isKillTooltipEnabled()) {
+                    renderTooltip();
+                }
             }
         }
 
@@ -65,82 +64,94 @@ public class StatisticsKillOverlay extends Overlay {
 
         if (selectedTile != null) {
             WorldPoint worldPoint = selectedTile.getWorldLocation();
+            Tooltip tooltip = tooltipCache.get(TileStore.pack(worldPoint.getX(), worldPoint.getY(), worldPoint.getPlane()),
+                                               killCountSnapshot.getVersion(), tooltipBuilder);
 
-            if (killCountMap.containsKey(worldPoint)) {
-                StringBuilder tooltip = new StringBuilder()
-                        .append("X: ").append(worldPoint.getX())
-                        .append(", Y: ").append(worldPoint.getY())
-                        .append(", Plane: ").append(worldPoint.getPlane())
-                        .append("</br>");
-
-                for (Map.Entry<WorldPoint, Map<Integer, Integer>> entry : killCountMap.entrySet()) {
-                    if (entry.getKey().equals(worldPoint)) {
-                        Map<Integer, Integer> npcHashMap = entry.getValue();
-                        int max = Collections.max(npcHashMap.values());
-
-                        for (Map.Entry<Integer, Integer> entry1 : npcHashMap.entrySet()) {
-                            int count = entry1.getValue();
-
-                            tooltip
-                                .append(ColorUtil.colorTag(Utilities.getHeatMapColor(count / (float) max)))
-                                .append(entry1.getKey())
-                                .append(": ")
-                                .append(count)
-                                .append("</br>");
-                        }
-                    }
-                }
-
-                // Display tooltip, cutting off the final line break.
-                tooltipManager.add(new Tooltip(tooltip.substring(0, tooltip.length() - 4)));
+            if (tooltip != null) {
+                tooltipManager.add(tooltip);
             }
         }
     }
 
-    private void renderTiles(Graphics2D graphics) {
-        if (killCountMap != null) {
-            int max = Integer.MIN_VALUE;
+    private Tooltip buildTooltip(long key) {
+        TileStore killCounts = killCountSnapshot.get();
+        int index = killCounts.indexOf(key);
 
-            for (Map<Integer, Integer> entry : killCountMap.values()) {
-                for (int entry1 : entry.values()) {
-                    max = Math.max(entry1, max);
-                }
-            }
+        if (index < 0) {
+            return null;
+        }
 
-            for (Map.Entry<WorldPoint, Map<Integer, Integer>> entry : killCountMap.entrySet()) {
-                WorldPoint point = entry.getKey();
-                Map<Integer, Integer> value = entry.getValue();
-                LocalPoint tileLocation = LocalPoint.fromWorld(client, point.getX(), point.getY());
+        StringBuilder tooltip = new StringBuilder()
+                .append("X: ").append(TileStore.unpackX(key))
+                .append(", Y: ").append(TileStore.unpackY(key))
+                .append(", Plane: ").append(TileStore.unpackPlane(key))
+                .append("</br>");
 
-                if (value != null && tileLocation != null && point.getPlane() == client.getPlane()) {
-                    renderTile(client, graphics, tileLocation, entry.getValue(), max);
-                }
-            }
+        int max = Integer.MIN_VALUE;
+
+        for (int detail = killCounts.firstDetail(index); detail >= 0; detail = killCounts.nextDetail(detail)) {
+            max = Math.max(killCounts.detailValue(detail), max);
+        }
+
+        for (int detail = killCounts.firstDetail(index); detail >= 0; detail = killCounts.nextDetail(detail)) {
+            int count = killCounts.detailValue(detail);
+
+            tooltip
+                .append(ColorUtil.colorTag(Utilities.getHeatMapColor(count / (float) max)))
+                .append(killCounts.detailId(detail))
+                .append(": ")
+                .append(count)
+                .append("</br>");
         }
+
+        // Cut off the final line break.
+        return new Tooltip(tooltip.substring(0, tooltip.length() - 4));
     }
 
-    private void renderTile(Client client, Graphics2D graphics, LocalPoint tileLocation, Map<Integer, Integer> tileValue, int max) {
-        Polygon polygon = Perspective.getCanvasTilePoly(client, tileLocation);
+    private void renderTiles(Graphics2D graphics) {
+        TileStore killCounts = killCountSnapshot.get();
+
+        if (renderModel.isStale(killCounts, 0)) {
+            double[] values = new double[killCounts.size()];
+            int max = Integer.MIN_VALUE;
 
-        if (polygon != null) {
-            int renderValue = 0;
+            for (int index = 0; index < killCounts.size(); index++) {
+                values[index] = killCounts.value(index, 0);
 
-            for (int value : tileValue.values()) {
-                renderValue += value;
+                // The heat map is scaled against the most kills of a single NPC on any one tile.
+                for (int detail = killCounts.firstDetail(index); detail >= 0; detail = killCounts.nextDetail(detail)) {
+                    max = Math.max(killCounts.detailValue(detail), max);
+                }
             }
 
-            OverlayUtil.renderPolygon(graphics, polygon, Utilities.getHeatMapColor((float) (renderValue / (double) max)));
+            renderModel.setData(killCounts, 0, values, max);
         }
+
+        renderModel.render(client, graphics);
     }
 
     private void updateMaps() {
         Actor player = client.getLocalPlayer();
 
-        // If the player exists, and has received a kill update since the overlay last checked for one, repopulate the
-        // local kill map and make note of it.
-        if (player != null && (lastUpdated == null || lastUpdated.isBefore(plugin.lastUpdatedKill))) {
-            lastUpdated = plugin.lastUpdatedKill;
-            killCountMap = plugin.database.retrieveKillMap(player, true);
+        if (player != null) {
+            WorldPoint location = player.getWorldLocation();
+            int regionKey = (location.getPlane() << 16) | location.getRegionID();
+
+            plugin.killCache.update(player.getName(), location);
+
+            // If the cache has loaded new kill data, or the player has moved into another region, rebuild the local
+            // kill map from the regions around the player. The map is built in the background and swapped in whole.
+            int version = plugin.killCache.getVersion();
+
+            if ((cacheVersion != version || lastRegionKey != regionKey)
+                && killCountSnapshot.refresh(() -> plugin.reader.submit(() -> {
+                    TileStore killCounts = TileStore.forKills();
+                    plugin.killCache.forEachVisible(location, killCounts::addAll);
+                    return killCounts;
+                }))) {
+                cacheVersion = version;
+                lastRegionKey = regionKey;
+            }
         }
     }
 }
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms describing what the plugin is doing. Recording is lock-free and cheap
+ * enough to do on every frame and every database call; anything which reads the metrics back builds a snapshot.
+ */
+@Slf4j
+class StatisticsMetrics implements StatisticsMetricsMXBean {
+
+    static final String OBJECT_NAME = "com.stefensharkey.osrsstatistics:type=Metrics";
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Starts timing something, which is recorded under the given name when the returned timer is closed.
+     */
+    Timer time(String name) {
+        return new Timer(histogram(name), System.nanoTime());
+    }
+
+    void increment(String name) {
+        add(name, 1);
+    }
+
+    void add(String name, long delta) {
+        counters.computeIfAbsent(name, key -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * Reports the given value under the name whenever the metrics are read, replacing any gauge of the same name.
+     */
+    void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    private Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        return histogram != null ? histogram : histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public Map<String, LatencySummary> getLatencies() {
+        Map<String, LatencySummary> values = new TreeMap<>();
+        histograms.forEach((name, histogram) -> values.put(name, histogram.summarize()));
+        return values;
+    }
+
+    @Override
+    public void reset() {
+        counters.values().forEach(LongAdder::reset);
+        histograms.values().forEach(Histogram::reset);
+    }
+
+    /**
+     * Makes the metrics visible through JMX. A registration left behind by an earlier start of the plugin is replaced.
+     */
+    void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+
+            try {
+                server.registerMBean(this, name);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(name);
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            log.warn("Failed to register statistics metrics with JMX", e);
+        }
+    }
+
+    void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.debug("Failed to unregister statistics metrics from JMX", e);
+        }
+    }
+
+    static final class Timer implements AutoCloseable {
+
+        private final Histogram histogram;
+        private final long start;
+
+        private Timer(Histogram histogram, long start) {
+            this.histogram = histogram;
+            this.start = start;
+        }
+
+        @Override
+        public void close() {
+            histogram.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Counts durations into buckets which are a quarter of a power of two wide, so that any percentile read back is
+     * within 25% of the true value however widely the durations vary.
+     */
+    private static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = Long.SIZE * SUB_BUCKETS;
+        private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            buckets.incrementAndGet(bucketOf(nanos));
+            count.increment();
+            total.add(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        void reset() {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                buckets.set(bucket, 0);
+            }
+
+            count.reset();
+            total.reset();
+            max.set(0);
+        }
+
+        LatencySummary summarize() {
+            long[] counts = new long[BUCKETS];
+            long sampleCount = 0;
+
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                counts[bucket] = buckets.get(bucket);
+                sampleCount += counts[bucket];
+            }
+
+            double mean = sampleCount == 0 ? 0 : total.sum() / (double) sampleCount;
+
+            return new LatencySummary(sampleCount, mean / NANOS_PER_MILLI,
+                                      percentile(counts, sampleCount, 0.50) / NANOS_PER_MILLI,
+                                      percentile(counts, sampleCount, 0.95) / NANOS_PER_MILLI,
+                                      percentile(counts, sampleCount, 0.99) / NANOS_PER_MILLI,
+                                      max.get() / NANOS_PER_MILLI);
+        }
+
+        private static long percentile(long[] counts, long sampleCount, double fraction) {
+            long rank = (long) Math.ceil(sampleCount * fraction);
+            long seen = 0;
+
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += counts[bucket];
+
+                if (seen >= rank && seen > 0) {
+                    return upperBound(bucket);
+                }
+            }
+
+            return 0;
+        }
+
+        private static int bucketOf(long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int) nanos;
+            }
+
+            // The leading bit picks the power of two, and the bits after it pick the quarter within it.
+            int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+            int fraction = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + fraction;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+
+            int shift = bucket / SUB_BUCKETS - 1;
+            long fraction = SUB_BUCKETS + bucket % SUB_BUCKETS;
+            return ((fraction + 1) << shift) - 1;
+        }
+    }
+}
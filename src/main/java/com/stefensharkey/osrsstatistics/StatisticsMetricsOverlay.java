@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import net.runelite.client.ui.overlay.OverlayPanel;
+import net.runelite.client.ui.overlay.OverlayPosition;
+import net.runelite.client.ui.overlay.components.LineComponent;
+import net.runelite.client.ui.overlay.components.TitleComponent;
+
+import javax.inject.Inject;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.util.Map;
+
+/**
+ * Lists the plugin's metrics in the client, for watching the database and overlays on a live account.
+ */
+class StatisticsMetricsOverlay extends OverlayPanel {
+
+    private static final Dimension PREFERRED_SIZE = new Dimension(260, 0);
+
+    private final StatisticsPlugin plugin;
+    private final StatisticsConfig config;
+
+    @Inject
+    StatisticsMetricsOverlay(StatisticsPlugin plugin, StatisticsConfig config) {
+        setPosition(OverlayPosition.TOP_LEFT);
+        this.plugin = plugin;
+        this.config = config;
+    }
+
+    @Override
+    public Dimension render(Graphics2D graphics) {
+        if (!config.isMetricsOverlayEnabled()) {
+            return null;
+        }
+
+        StatisticsMetrics metrics = plugin.metrics;
+        panelComponent.setPreferredSize(PREFERRED_SIZE);
+        panelComponent.getChildren().add(TitleComponent.builder().text("Statistics (p50 / p99 ms)").build());
+
+        for (Map.Entry<String, StatisticsMetricsMXBean.LatencySummary> entry : metrics.getLatencies().entrySet()) {
+            StatisticsMetricsMXBean.LatencySummary summary = entry.getValue();
+            addLine(entry.getKey(), String.format("%.2f / %.2f", summary.getP50Millis(), summary.getP99Millis()));
+        }
+
+        for (Map.Entry<String, Long> entry : metrics.getCounters().entrySet()) {
+            addLine(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+
+        for (Map.Entry<String, Long> entry : metrics.getGauges().entrySet()) {
+            addLine(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+
+        return super.render(graphics);
+    }
+
+    private void addLine(String left, String right) {
+        panelComponent.getChildren().add(LineComponent.builder().left(left).right(right).build());
+    }
+}
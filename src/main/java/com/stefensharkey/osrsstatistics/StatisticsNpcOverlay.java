@@ -1,23 +1,24 @@
 package com.stefensharkey.osrsstatistics;
 
-import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.api.Actor;
 import net.runelite.api.Client;
 import net.runelite.api.NPC;
-import net.runelite.api.coords.WorldPoint;
 import net.runelite.client.game.ItemManager;
 import net.runelite.client.ui.overlay.Overlay;
 import net.runelite.client.ui.overlay.OverlayLayer;
 import net.runelite.client.ui.overlay.OverlayPosition;
 import net.runelite.client.ui.overlay.tooltip.Tooltip;
 import net.runelite.client.ui.overlay.tooltip.TooltipManager;
+import net.runelite.client.util.QuantityFormatter;
 
 import javax.inject.Inject;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.time.LocalDateTime;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.function.LongFunction;
 
 @Slf4j
 public class StatisticsNpcOverlay extends Overlay {
@@ -27,15 +28,21 @@ public class StatisticsNpcOverlay extends Overlay {
     private final StatisticsConfig config;
     private final TooltipManager tooltipManager;
     private final ItemManager itemManager;
+    private final LootValuation lootValuation;
 
-    private Map<Integer, Map<Integer, Integer>> loot;
+    private final Snapshot<Database.NpcSummary> summary = new Snapshot<>(new Database.NpcSummary(-1, 0, Map.of()));
+    private int summaryNpcId = -1;
+    private boolean summaryClan;
+    private LocalDateTime lastUpdatedKill;
     private LocalDateTime lastUpdatedLoot;
 
-    private Map<WorldPoint, Map<Integer, Integer>> kills;
-    private LocalDateTime lastUpdatedKill;
+    private final TooltipCache tooltipCache = new TooltipCache();
+    private final LongFunction<Tooltip> tooltipBuilder = this::buildTooltip;
+    private final Map<Integer, String> itemNames = new HashMap<>();
 
     @Inject
-    StatisticsNpcOverlay(Client client, StatisticsPlugin plugin, StatisticsConfig config, TooltipManager tooltipManager, ItemManager itemManager) {
+    StatisticsNpcOverlay(Client client, StatisticsPlugin plugin, StatisticsConfig config, TooltipManager tooltipManager, ItemManager itemManager,
+                         LootValuation lootValuation) {
         setPosition(OverlayPosition.DYNAMIC);
         setLayer(OverlayLayer.ABOVE_SCENE);
         this.client = client;
@@ -43,63 +50,87 @@ public class StatisticsNpcOverlay extends Overlay {
         this.config = config;
         this.tooltipManager = tooltipManager;
         this.itemManager = itemManager;
-        updateMaps();
+        this.lootValuation = lootValuation;
     }
 
     @Override
     public Dimension render(Graphics2D graphics) {
         if (config.isNpcTooltipEnabled() && !client.isMenuOpen() && plugin.hoveredNpc != null) {
-            updateMaps();
-            renderTooltip(plugin.hoveredNpc);
+            try (StatisticsMetrics.Timer timer = plugin.metrics.time("overlay.npc")) {
+                updateSummary(plugin.hoveredNpc);
+                renderTooltip(plugin.hoveredNpc);
+            }
         }
 
         return null;
     }
 
-    @SneakyThrows
     private void renderTooltip(NPC npc) {
-        StringBuilder tooltip = new StringBuilder("Kills");
-        int numKills = 0;
+        // Tooltips are rebuilt when either the summary or the prices it is valued at change.
+        long version = (long) lootValuation.getVersion() << 32 | summary.getVersion();
+        Tooltip tooltip = tooltipCache.get(npc.getId(), version, tooltipBuilder);
 
-        // Determine the number of kills.
-        for (Map<Integer, Integer> npcEntry : kills.values()) {
-            numKills += npcEntry.getOrDefault(npc.getId(), 0);
+        if (tooltip != null) {
+            tooltipManager.add(tooltip);
         }
+    }
 
-        tooltip.append(numKills).append("</br></br>Loot:</br>");
+    private Tooltip buildTooltip(long npcId) {
+        Database.NpcSummary npcSummary = summary.get();
 
-        // Determine the loot names and quantities.
-        for (Map.Entry<Integer, Map<Integer, Integer>> npcEntry : loot.entrySet()) {
-            if (npcEntry.getKey() == npc.getId()) {
-                for (Map.Entry<Integer, Integer> itemEntry : npcEntry.getValue().entrySet()) {
-                    tooltip.append(itemManager.getItemComposition(itemEntry.getKey()).getName())
-                            .append(" (")
-                            .append(itemEntry.getValue())
-                            .append(")</br>");
-                }
-            }
+        // Show nothing until the hovered NPC's summary has arrived, rather than another NPC's.
+        if (npcSummary.npcId() != npcId) {
+            return null;
         }
 
-        // Display tooltip, cutting off the final line break.
-        tooltipManager.add(new Tooltip(tooltip.substring(0, tooltip.length() - 4)));
-    }
+        LootValuation.Value value = lootValuation.value(npcSummary);
+        StringBuilder tooltip = new StringBuilder("Kills");
+        tooltip.append(npcSummary.kills())
+                .append("</br>Loot Value: ")
+                .append(QuantityFormatter.quantityToStackSize(value.total()))
+                .append(" gp (")
+                .append(QuantityFormatter.quantityToStackSize(value.perKill()))
+                .append(" gp/kill)</br></br>Loot:</br>");
 
-    private void updateMaps() {
-        Actor player = client.getLocalPlayer();
+        // Determine the loot names and quantities.
+        for (Map.Entry<Integer, Integer> itemEntry : npcSummary.loot().entrySet()) {
+            tooltip.append(getItemName(itemEntry.getKey()))
+                    .append(" (")
+                    .append(itemEntry.getValue())
+                    .append(")</br>");
+        }
 
-        // If the player exists, and has received a loot update since the overlay last checked for one, repopulate the
-        // local loot map and make note of it.
-        if (player != null && (lastUpdatedLoot == null || lastUpdatedLoot.isBefore(plugin.lastUpdatedLoot))) {
-            lastUpdatedLoot = plugin.lastUpdatedLoot;
+        // Cut off the final line break.
+        return new Tooltip(tooltip.substring(0, tooltip.length() - 4));
+    }
 
-            loot = plugin.database.retrieveLootMap(player.getName());
-        }
+    /**
+     * Item names never change while the client is running, so each is only looked up once.
+     */
+    private String getItemName(int itemId) {
+        return itemNames.computeIfAbsent(itemId, id -> itemManager.getItemComposition(id).getName());
+    }
 
-        // If the player exists, and has received a kill update since the overlay last checked for one, repopulate the
-        // local kill map and make note of it.
-        if (player != null && (lastUpdatedKill == null || lastUpdatedKill.isBefore(plugin.lastUpdatedKill))) {
+    /**
+     * Fetches the hovered NPC's summary in the background when a different NPC is hovered, when switching between the
+     * player's and the clan's totals, or when the player has received a kill or loot update since the summary was last
+     * fetched.
+     */
+    private void updateSummary(NPC npc) {
+        Actor player = client.getLocalPlayer();
+        int npcId = npc.getId();
+        boolean clan = config.isClanAggregateEnabled();
+
+        if (player != null
+            && (npcId != summaryNpcId || clan != summaryClan
+                || lastUpdatedKill == null || lastUpdatedKill.isBefore(plugin.lastUpdatedKill)
+                || lastUpdatedLoot == null || lastUpdatedLoot.isBefore(plugin.lastUpdatedLoot))
+            && summary.refresh(() -> clan ? plugin.reader.retrieveClanNpcSummary(npcId)
+                                          : plugin.reader.retrieveNpcSummary(player.getName(), npcId))) {
+            summaryNpcId = npcId;
+            summaryClan = clan;
             lastUpdatedKill = plugin.lastUpdatedKill;
-            kills = plugin.database.retrieveKillMap(player, false);
+            lastUpdatedLoot = plugin.lastUpdatedLoot;
         }
     }
 }
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stefensharkey.osrsstatistics;
+
+import net.runelite.api.Skill;
+import org.sqlite.SQLiteDataSource;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A local SQLite store of buffered statistics which couldn't be written to a remote database. Each flush is kept as a
+ * batch with its own id, so that the remote database can recognise a batch it has already applied.
+ */
+class StatisticsOutbox implements AutoCloseable {
+
+    record Batch(long batchSeq, UUID id, StatisticsBuffer buffer) {
+    }
+
+    private final Connection connection;
+    private volatile int pendingBatches;
+
+    private StatisticsOutbox(Connection connection) {
+        this.connection = connection;
+    }
+
+    static StatisticsOutbox open(Path file) throws SQLException {
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:" + file);
+
+        StatisticsOutbox outbox = new StatisticsOutbox(dataSource.getConnection());
+
+        try (Statement statement = outbox.connection.createStatement()) {
+            statement.execute("""
+                              CREATE TABLE IF NOT EXISTS batches (
+                                  batch_seq INTEGER PRIMARY KEY,
+                                  batch_id CHAR(36) NOT NULL,
+                                  journal_sequence BIGINT NOT NULL
+                              )
+                              """);
+            statement.execute("""
+                              CREATE TABLE IF NOT EXISTS kills (
+                                  batch_seq INTEGER NOT NULL,
+                                  username VARCHAR(50) NOT NULL,
+                                  x_coord INT NOT NULL,
+                                  y_coord INT NOT NULL,
+                                  plane INT NOT NULL,
+                                  world INT NOT NULL,
+                                  npc_id INT NOT NULL,
+                                  hour INT NOT NULL,
+                                  count INT NOT NULL
+                              )
+                              """);
+            statement.execute("""
+                              CREATE TABLE IF NOT EXISTS experience (
+                                  batch_seq INTEGER NOT NULL,
+                                  username VARCHAR(50) NOT NULL,
+                                  x_coord INT NOT NULL,
+                                  y_coord INT NOT NULL,
+                                  plane INT NOT NULL,
+                                  world INT NOT NULL,
+                                  skill_id INT NOT NULL,
+                                  hour INT NOT NULL,
+                                  xp INT NOT NULL,
+                                  count INT NOT NULL
+                              )
+                              """);
+            statement.execute("""
+                              CREATE TABLE IF NOT EXISTS loot (
+                                  batch_seq INTEGER NOT NULL,
+                                  username VARCHAR(50) NOT NULL,
+                                  npc_id INT NOT NULL,
+                                  item_id INT NOT NULL,
+                                  hour INT NOT NULL,
+                                  quantity INT NOT NULL
+                              )
+                              """);
+
+            statement.execute("CREATE INDEX IF NOT EXISTS kills_batch ON kills (batch_seq)");
+            statement.execute("CREATE INDEX IF NOT EXISTS experience_batch ON experience (batch_seq)");
+            statement.execute("CREATE INDEX IF NOT EXISTS loot_batch ON loot (batch_seq)");
+
+            try (ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM batches")) {
+                outbox.pendingBatches = resultSet.next() ? resultSet.getInt(1) : 0;
+            }
+        }
+
+        return outbox;
+    }
+
+    boolean isEmpty() {
+        return pendingBatches == 0;
+    }
+
+    int getPendingBatches() {
+        return pendingBatches;
+    }
+
+    /**
+     * Stores the buffer's contents as a new batch.
+     */
+    synchronized void add(StatisticsBuffer buffer) throws SQLException {
+        inTransaction(() -> {
+            long batchSeq;
+
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "INSERT INTO batches (batch_id, journal_sequence) VALUES (?, ?)",
+                    Statement.RETURN_GENERATED_KEYS)) {
+                preparedStatement.setString(1, UUID.randomUUID().toString());
+                preparedStatement.setLong(2, buffer.getJournalSequence());
+                preparedStatement.executeUpdate();
+
+                try (ResultSet resultSet = preparedStatement.getGeneratedKeys()) {
+                    resultSet.next();
+                    batchSeq = resultSet.getLong(1);
+                }
+            }
+
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "INSERT INTO kills VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+                for (Map.Entry<StatisticsBuffer.KillKey, Integer> entry : buffer.getKills().entrySet()) {
+                    StatisticsBuffer.KillKey key = entry.getKey();
+                    preparedStatement.setLong(1, batchSeq);
+                    preparedStatement.setString(2, key.username());
+                    preparedStatement.setInt(3, key.x());
+                    preparedStatement.setInt(4, key.y());
+                    preparedStatement.setInt(5, key.plane());
+                    preparedStatement.setInt(6, key.world());
+                    preparedStatement.setInt(7, key.npcId());
+                    preparedStatement.setInt(8, key.hour());
+                    preparedStatement.setInt(9, entry.getValue());
+                    preparedStatement.addBatch();
+                }
+
+                preparedStatement.executeBatch();
+            }
+
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "INSERT INTO experience VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+                for (Map.Entry<StatisticsBuffer.XpKey, int[]> entry : buffer.getXp().entrySet()) {
+                    StatisticsBuffer.XpKey key = entry.getKey();
+                    preparedStatement.setLong(1, batchSeq);
+                    preparedStatement.setString(2, key.username());
+                    preparedStatement.setInt(3, key.x());
+                    preparedStatement.setInt(4, key.y());
+                    preparedStatement.setInt(5, key.plane());
+                    preparedStatement.setInt(6, key.world());
+                    preparedStatement.setInt(7, key.skill().ordinal());
+                    preparedStatement.setInt(8, key.hour());
+                    preparedStatement.setInt(9, entry.getValue()[0]);
+                    preparedStatement.setInt(10, entry.getValue()[1]);
+                    preparedStatement.addBatch();
+                }
+
+                preparedStatement.executeBatch();
+            }
+
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "INSERT INTO loot VALUES (?, ?, ?, ?, ?, ?)")) {
+                for (Map.Entry<StatisticsBuffer.LootKey, Integer> entry : buffer.getLoot().entrySet()) {
+                    StatisticsBuffer.LootKey key = entry.getKey();
+                    preparedStatement.setLong(1, batchSeq);
+                    preparedStatement.setString(2, key.username());
+                    preparedStatement.setInt(3, key.npcId());
+                    preparedStatement.setInt(4, key.itemId());
+                    preparedStatement.setInt(5, key.hour());
+                    preparedStatement.setInt(6, entry.getValue());
+                    preparedStatement.addBatch();
+                }
+
+                preparedStatement.executeBatch();
+            }
+        });
+
+        pendingBatches++;
+    }
+
+    /**
+     * Returns the oldest stored batch without removing it, or null if there are none.
+     */
+    synchronized Batch peek() throws SQLException {
+        long batchSeq;
+        UUID id;
+        StatisticsBuffer buffer = new StatisticsBuffer();
+
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "SELECT batch_seq, batch_id, journal_sequence FROM batches ORDER BY batch_seq LIMIT 1")) {
+            if (!resultSet.next()) {
+                return null;
+            }
+
+            batchSeq = resultSet.getLong(1);
+            id = UUID.fromString(resultSet.getString(2));
+            buffer.setJournalSequence(resultSet.getLong(3));
+        }
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "SELECT username, x_coord, y_coord, plane, world, npc_id, hour, count FROM kills WHERE batch_seq = ?")) {
+            preparedStatement.setLong(1, batchSeq);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    buffer.addKills(new StatisticsBuffer.KillKey(resultSet.getString(1), resultSet.getInt(2),
+                                                                 resultSet.getInt(3), resultSet.getInt(4),
+                                                                 resultSet.getInt(5), resultSet.getInt(6),
+                                                                 resultSet.getInt(7)),
+                                    resultSet.getInt(8));
+                }
+            }
+        }
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "SELECT username, x_coord, y_coord, plane, world, skill_id, hour, xp, count FROM experience" +
+                " WHERE batch_seq = ?")) {
+            preparedStatement.setLong(1, batchSeq);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    buffer.addXp(new StatisticsBuffer.XpKey(resultSet.getString(1), resultSet.getInt(2),
+                                                            resultSet.getInt(3), resultSet.getInt(4),
+                                                            resultSet.getInt(5), Skill.values()[resultSet.getInt(6)],
+                                                            resultSet.getInt(7)),
+                                 resultSet.getInt(8), resultSet.getInt(9));
+                }
+            }
+        }
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "SELECT username, npc_id, item_id, hour, quantity FROM loot WHERE batch_seq = ?")) {
+            preparedStatement.setLong(1, batchSeq);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    buffer.addLoot(new StatisticsBuffer.LootKey(resultSet.getString(1), resultSet.getInt(2),
+                                                                resultSet.getInt(3), resultSet.getInt(4)),
+                                   resultSet.getInt(5));
+                }
+            }
+        }
+
+        return new Batch(batchSeq, id, buffer);
+    }
+
+    synchronized void remove(long batchSeq) throws SQLException {
+        inTransaction(() -> {
+            for (String tableName : new String[] {"kills", "experience", "loot", "batches"}) {
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "DELETE FROM " + tableName + " WHERE batch_seq = ?")) {
+                    preparedStatement.setLong(1, batchSeq);
+                    preparedStatement.executeUpdate();
+                }
+            }
+        });
+
+        pendingBatches--;
+    }
+
+    /**
+     * Returns the sequence number of the last journaled event held in the outbox, or -1 if there is none.
+     */
+    synchronized long getJournalSequence() throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT MAX(journal_sequence) FROM batches")) {
+            return resultSet.next() && resultSet.getObject(1) != null ? resultSet.getLong(1) : -1;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws SQLException {
+        connection.close();
+    }
+
+    private void inTransaction(SqlRunnable runnable) throws SQLException {
+        connection.setAutoCommit(false);
+
+        try {
+            runnable.run();
+            connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    @FunctionalInterface
+    private interface SqlRunnable {
+
+        void run() throws SQLException;
+    }
+}
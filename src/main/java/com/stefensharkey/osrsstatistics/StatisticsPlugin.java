@@ -26,16 +26,22 @@ package com.stefensharkey.osrsstatistics;
 
 import com.google.inject.Provides;
 import lombok.extern.slf4j.Slf4j;
+import net.runelite.api.ChatMessageType;
 import net.runelite.api.Client;
 import net.runelite.api.GameState;
 import net.runelite.api.MenuAction;
 import net.runelite.api.NPC;
 import net.runelite.api.Player;
 import net.runelite.api.Skill;
+import net.runelite.api.coords.WorldPoint;
+import net.runelite.api.events.CommandExecuted;
 import net.runelite.api.events.GameStateChanged;
 import net.runelite.api.events.MenuEntryAdded;
 import net.runelite.api.events.NpcDespawned;
 import net.runelite.api.events.StatChanged;
+import net.runelite.client.RuneLite;
+import net.runelite.client.chat.ChatMessageManager;
+import net.runelite.client.chat.QueuedMessage;
 import net.runelite.client.config.ConfigManager;
 import net.runelite.client.eventbus.Subscribe;
 import net.runelite.client.events.ConfigChanged;
@@ -49,9 +55,13 @@ import net.runelite.client.ui.overlay.OverlayManager;
 import org.apache.commons.lang3.ArrayUtils;
 
 import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
 
 @Slf4j
 @PluginDescriptor(
@@ -71,6 +81,9 @@ public class StatisticsPlugin extends Plugin {
     @Inject
     private NPCManager npcManager;
 
+    @Inject
+    private ChatMessageManager chatMessageManager;
+
     @Inject
     private StatisticsConfig config;
 
@@ -83,10 +96,29 @@ public class StatisticsPlugin extends Plugin {
     @Inject
     private StatisticsXpOverlay xpOverlay;
 
+    @Inject
+    private StatisticsMetricsOverlay metricsOverlay;
+
+    @Inject
+    private StatisticsRateOverlay rateOverlay;
+
     private final LinkedHashMap<Skill, Integer> skillXpCache = new LinkedHashMap<>();
 
+    final StatisticsMetrics metrics = new StatisticsMetrics();
+    final RateTracker rates = new RateTracker();
+
     Database database;
 
+    private StatisticsJournal journal;
+    StatisticsOutbox outbox;
+    StatisticsSyncAgent syncAgent;
+    volatile LocalReplica replica;
+    private StatisticsWriter writer;
+
+    DatabaseReader reader;
+    RegionCache<TileStore> killCache;
+    RegionCache<TileStore> xpCache;
+
     LocalDateTime lastUpdatedKill;
     LocalDateTime lastUpdatedLoot;
     LocalDateTime lastUpdatedXp;
@@ -99,27 +131,77 @@ public class StatisticsPlugin extends Plugin {
             MenuAction.NPC_FIFTH_OPTION.getId()
     };
 
+    private static final String EXPORT_COMMAND = "statsexport";
+    private static final String IMPORT_COMMAND = "statsimport";
+
     NPC hoveredNpc;
 
     @Override
-    protected void startUp() {
-        database = new Database(config);
+    protected void startUp() throws IOException, SQLException {
+        // Nothing here connects to the database. The writer opens it once it can be reached, and until then captured
+        // events wait in the journal.
+        database = new Database(config, metrics);
+        journal = StatisticsJournal.open(Path.of(RuneLite.RUNELITE_DIR.getAbsolutePath(), "heatmap-journal"));
+        // The outbox records how far through the journal its batches reach, so each journal has an outbox of its own.
+        outbox = StatisticsOutbox.open(StatisticsJournal.instancePath(
+                Path.of(RuneLite.RUNELITE_DIR.getAbsolutePath(), "heatmap-outbox"), journal.getInstance()));
+
+        reader = new DatabaseReader(database);
+        updateReplica();
+        killCache = new RegionCache<>(this::loadKillMap);
+        xpCache = new RegionCache<>(this::loadXpMap);
 
         LocalDateTime now = now();
         lastUpdatedKill = now;
         lastUpdatedLoot = now;
         lastUpdatedXp = now;
+        rates.reset(System.currentTimeMillis());
+
+        // Events already stored in the outbox will reach the database through it, so they mustn't be replayed too.
+        // This is read before the sync agent starts sending, and so removing, the stored batches.
+        long storedSequence = outbox.getJournalSequence();
+
+        // The sync agent and the writer mark the caches as out of date after every write, including writes of batches
+        // left in the outbox or events replayed from the journal as they start, so they are only started once the
+        // caches exist. The writer wakes the sync agent whenever it stores a batch, so the agent is started first.
+        syncAgent = new StatisticsSyncAgent(this, outbox);
+        syncAgent.start();
+        writer = new StatisticsWriter(this, config, journal, storedSequence);
+        writer.start();
+
+        metrics.gauge("writer.queueDepth", () -> writer.getQueueDepth());
+        metrics.gauge("reader.activeReads", () -> reader.getActiveCount());
+        metrics.gauge("reader.queuedReads", () -> reader.getQueuedCount());
+        metrics.gauge("outbox.pendingBatches", () -> outbox.getPendingBatches());
+        metrics.register();
 
         overlayManager.add(killOverlay);
         overlayManager.add(npcOverlay);
         overlayManager.add(xpOverlay);
+        overlayManager.add(metricsOverlay);
+        overlayManager.add(rateOverlay);
     }
 
     @Override
-    protected void shutDown() {
+    protected void shutDown() throws SQLException {
         overlayManager.remove(killOverlay);
         overlayManager.remove(npcOverlay);
         overlayManager.remove(xpOverlay);
+        overlayManager.remove(metricsOverlay);
+        overlayManager.remove(rateOverlay);
+        metrics.unregister();
+
+        writer.stop();
+        syncAgent.stop();
+
+        if (replica != null) {
+            replica.close();
+            replica = null;
+        }
+
+        outbox.close();
+        journal.close();
+        reader.shutdown();
     }
 
     @Subscribe
@@ -137,14 +219,20 @@ public class StatisticsPlugin extends Plugin {
                 // actually an XP change.
                 if (skillXpCache.get(skill) != xp) {
                     int delta = xp - skillXpCache.get(skill);
+                    long time = System.currentTimeMillis();
 
-                    // Insert into the database within a thread so
                     skillXpCache.put(skill, xp);
+                    rates.recordXp(skill, delta, time);
 
-                    new Thread(() -> {
-                        database.insertXp(client, skill.getName(), delta);
-                        lastUpdatedXp = now();
-                    }).start();
+                    Player player = client.getLocalPlayer();
+
+                    if (player != null) {
+                        WorldPoint location = player.getWorldLocation();
+
+                        writer.submit(new StatisticsEvent.Xp(player.getName(), location.getX(), location.getY(),
+                                                             location.getPlane(), client.getWorld(), skill, delta,
+                                                             time));
+                    }
                 }
             }
         }
@@ -160,18 +248,25 @@ public class StatisticsPlugin extends Plugin {
            GameState.LOGGED_IN, without firing GameStatChanged event for all skills. */
         if (gameState == GameState.LOGGING_IN) {
             skillXpCache.clear();
+            rates.reset(System.currentTimeMillis());
+        } else if (gameState == GameState.LOGIN_SCREEN) {
+            // Write out everything gathered during the session rather than waiting for the next scheduled flush.
+            writer.requestFlush();
         }
     }
 
     @Subscribe
     public void onNpcDespawned(NpcDespawned npcDespawned) {
         NPC npc = npcDespawned.getNpc();
+        Player player = client.getLocalPlayer();
+
+        if (npc.isDead() && player != null) {
+            WorldPoint location = player.getWorldLocation();
+            long time = System.currentTimeMillis();
 
-        if (npc.isDead()) {
-            new Thread(() -> {
-                database.insertKill(client, npc.getId());
-                lastUpdatedKill = now();
-            }).start();
+            rates.recordKill(npc.getId(), time);
+            writer.submit(new StatisticsEvent.Kill(player.getName(), location.getX(), location.getY(),
+                                                   location.getPlane(), client.getWorld(), npc.getId(), time));
         }
     }
 
@@ -182,12 +277,10 @@ public class StatisticsPlugin extends Plugin {
         if (player != null) {
             NPC npc = npcLootReceived.getNpc();
 
-            new Thread(() -> {
-                for (ItemStack itemStack : npcLootReceived.getItems()) {
-                    database.insertLoot(player.getName(), npc.getId(), itemStack);
-                    lastUpdatedLoot = now();
-                }
-            }).start();
+            for (ItemStack itemStack : npcLootReceived.getItems()) {
+                writer.submit(new StatisticsEvent.Loot(player.getName(), npc.getId(), itemStack.getId(),
+                                                       itemStack.getQuantity(), System.currentTimeMillis()));
+            }
         }
     }
 
@@ -199,10 +292,127 @@ public class StatisticsPlugin extends Plugin {
                  "databaseusername",
                  "databasepassword",
                  "databasename",
-                 "databasetableprefix" -> database.updateConfig(config);
+                 "databasetableprefix" -> {
+                // The writer opens and migrates the new database in the background, starting straight away rather
+                // than at its next scheduled flush. The overlays show nothing until it has.
+                database.updateConfig(config);
+                writer.requestFlush();
+                updateReplica();
+                killCache.clear();
+                xpCache.clear();
+            }
+            case "replicaenabled" -> {
+                updateReplica();
+                killCache.clear();
+                xpCache.clear();
+            }
+            case "clanaggregate" -> {
+                killCache.clear();
+                xpCache.clear();
+            }
+            // The writer may be busy with a slow database, so it swaps in the new queue itself rather than being
+            // stopped and replaced from the client thread.
+            case "writerqueuecapacity" -> writer.resizeQueue();
         }
     }
 
+    /**
+     * Handles {@code ::statsexport [file]} and {@code ::statsimport [file]}, which export the logged in player's
+     * statistics to a snapshot file or replace them with those in one. Relative files are resolved against the
+     * RuneLite directory.
+     */
+    @Subscribe
+    public void onCommandExecuted(CommandExecuted commandExecuted) {
+        String command = commandExecuted.getCommand();
+        boolean export = command.equalsIgnoreCase(EXPORT_COMMAND);
+
+        if (!export && !command.equalsIgnoreCase(IMPORT_COMMAND)) {
+            return;
+        }
+
+        Player player = client.getLocalPlayer();
+
+        if (player == null || player.getName() == null) {
+            sendMessage("Log in to export or import statistics.");
+            return;
+        }
+
+        if (!database.isReady()) {
+            sendMessage("The statistics database hasn't been opened yet.");
+            return;
+        }
+
+        String username = player.getName();
+        String[] arguments = commandExecuted.getArguments();
+        Path file = Path.of(RuneLite.RUNELITE_DIR.getAbsolutePath())
+                        .resolve(arguments.length > 0 ? arguments[0] : "statistics-" + username + ".snapshot");
+
+        // Snapshots of a long history take a while, so they are made away from the client thread.
+        Thread thread = new Thread(() -> {
+            try {
+                if (export) {
+                    long rows = StatisticsArchive.export(database, username, file);
+                    sendMessage("Exported " + rows + " rows of statistics to " + file);
+                } else {
+                    long rows = StatisticsArchive.restore(database, username, file);
+
+                    if (replica != null) {
+                        replica.invalidate();
+                    }
+
+                    replicaRefreshed();
+                    sendMessage("Imported " + rows + " rows of statistics from " + file);
+                }
+            } catch (Exception e) {
+                log.warn("Unable to {} statistics snapshot {}", export ? "export" : "import", file, e);
+                sendMessage("Unable to " + (export ? "export" : "import") + " statistics: " + e.getMessage());
+            }
+        }, "statistics-snapshot");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void sendMessage(String message) {
+        chatMessageManager.queue(QueuedMessage.builder()
+                                              .type(ChatMessageType.CONSOLE)
+                                              .runeLiteFormattedMessage(message)
+                                              .build());
+    }
+
+    private CompletableFuture<TileStore> loadKillMap(String username, int plane, int minX, int minY, int maxX,
+                                                     int maxY) {
+        return config.isClanAggregateEnabled() ? reader.retrieveClanKillMap(plane, minX, minY, maxX, maxY)
+                                               : reader.retrieveKillMap(username, plane, minX, minY, maxX, maxY);
+    }
+
+    private CompletableFuture<TileStore> loadXpMap(String username, int plane, int minX, int minY, int maxX,
+                                                   int maxY) {
+        return config.isClanAggregateEnabled() ? reader.retrieveClanXpMap(plane, minX, minY, maxX, maxY)
+                                               : reader.retrieveXpMap(username, plane, minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Opens or closes the local replica to match the config. A replica kept open across a change of database is
+     * refreshed from the new database before it is read from again.
+     */
+    private void updateReplica() {
+        boolean enabled = config.isReplicaEnabled() && config.databaseType() != Database.DatabaseType.SQLITE;
+
+        if (enabled && replica == null) {
+            replica = LocalReplica.open(Path.of(RuneLite.RUNELITE_DIR.getAbsolutePath(), "heatmap-replica"),
+                                        metrics);
+        } else if (!enabled && replica != null) {
+            LocalReplica oldReplica = replica;
+            replica = null;
+            reader.setReplica(null);
+            oldReplica.close();
+        } else if (replica != null) {
+            replica.invalidate();
+        }
+
+        reader.setReplica(replica);
+    }
+
     @Subscribe
     public void onMenuEntryAdded(MenuEntryAdded event) {
         if (ArrayUtils.contains(NPC_MENU_ACTIONS, event.getType())) {
@@ -224,6 +434,58 @@ public class StatisticsPlugin extends Plugin {
         return configManager.getConfig(StatisticsConfig.class);
     }
 
+    /**
+     * Called once the local replica has copied the latest totals from the server, which may include totals written by
+     * other clients.
+     */
+    void replicaRefreshed() {
+        reloadOverlays();
+    }
+
+    /**
+     * Called once the database has been opened, so that the overlays read from it for the first time.
+     */
+    void databaseOpened() {
+        reloadOverlays();
+    }
+
+    private void reloadOverlays() {
+        LocalDateTime now = now();
+        lastUpdatedKill = now;
+        lastUpdatedLoot = now;
+        lastUpdatedXp = now;
+
+        killCache.clear();
+        xpCache.clear();
+    }
+
+    /**
+     * Records which statistics have just been written, prompting the overlays to refresh the affected regions.
+     */
+    void markUpdated(StatisticsBuffer buffer) {
+        LocalDateTime now = now();
+
+        if (!buffer.getKills().isEmpty()) {
+            lastUpdatedKill = now;
+
+            for (StatisticsBuffer.KillKey key : buffer.getKills().keySet()) {
+                killCache.invalidate(key.x(), key.y(), key.plane());
+            }
+        }
+
+        if (!buffer.getXp().isEmpty()) {
+            lastUpdatedXp = now;
+
+            for (StatisticsBuffer.XpKey key : buffer.getXp().keySet()) {
+                xpCache.invalidate(key.x(), key.y(), key.plane());
+            }
+        }
+
+        if (!buffer.getLoot().isEmpty()) {
+            lastUpdatedLoot = now;
+        }
+    }
+
     private static LocalDateTime now() {
         return LocalDateTime.now(ZoneId.systemDefault());
     }
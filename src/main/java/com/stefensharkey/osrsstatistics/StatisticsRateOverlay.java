@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import net.runelite.api.Client;
+import net.runelite.api.Skill;
+import net.runelite.client.ui.overlay.OverlayPanel;
+import net.runelite.client.ui.overlay.OverlayPosition;
+import net.runelite.client.ui.overlay.components.LineComponent;
+import net.runelite.client.ui.overlay.components.TitleComponent;
+import net.runelite.client.util.QuantityFormatter;
+
+import javax.inject.Inject;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lists the XP per hour of each skill trained and the kills per hour of each NPC killed this session.
+ */
+class StatisticsRateOverlay extends OverlayPanel {
+
+    private static final Dimension PREFERRED_SIZE = new Dimension(220, 0);
+
+    private final Client client;
+    private final StatisticsPlugin plugin;
+    private final StatisticsConfig config;
+    private final Map<Integer, String> npcNames = new HashMap<>();
+
+    @Inject
+    StatisticsRateOverlay(Client client, StatisticsPlugin plugin, StatisticsConfig config) {
+        setPosition(OverlayPosition.TOP_LEFT);
+        this.client = client;
+        this.plugin = plugin;
+        this.config = config;
+    }
+
+    @Override
+    public Dimension render(Graphics2D graphics) {
+        if (!config.isRateOverlayEnabled()) {
+            return null;
+        }
+
+        RateTracker rates = plugin.rates;
+        long now = System.currentTimeMillis();
+        panelComponent.setPreferredSize(PREFERRED_SIZE);
+        panelComponent.getChildren().add(TitleComponent.builder().text("Per Hour (5m / 1h / session)").build());
+
+        for (Skill skill : Skill.values()) {
+            if (skill != Skill.OVERALL && rates.getSessionXp(skill) > 0) {
+                addLine(skill.getName(), rates.xpPerHour(skill, RateTracker.Window.FIVE_MINUTES, now),
+                        rates.xpPerHour(skill, RateTracker.Window.HOUR, now),
+                        rates.xpPerHour(skill, RateTracker.Window.SESSION, now));
+            }
+        }
+
+        rates.forEachKilledNpc(npcId -> addLine(getNpcName(npcId),
+                                                rates.killsPerHour(npcId, RateTracker.Window.FIVE_MINUTES, now),
+                                                rates.killsPerHour(npcId, RateTracker.Window.HOUR, now),
+                                                rates.killsPerHour(npcId, RateTracker.Window.SESSION, now)));
+
+        return super.render(graphics);
+    }
+
+    private void addLine(String name, double fiveMinutes, double hour, double session) {
+        panelComponent.getChildren().add(LineComponent.builder()
+                                                      .left(name)
+                                                      .right(format(fiveMinutes) + " / " + format(hour) + " / " +
+                                                             format(session))
+                                                      .build());
+    }
+
+    private static String format(double rate) {
+        return QuantityFormatter.quantityToStackSize(Math.round(rate));
+    }
+
+    /**
+     * NPC names never change while the client is running, so each is only looked up once.
+     */
+    private String getNpcName(int npcId) {
+        return npcNames.computeIfAbsent(npcId, id -> client.getNpcDefinition(id).getName());
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stefensharkey.osrsstatistics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends batches stored in the outbox to the database, oldest first, on a dedicated thread. Failed attempts are retried
+ * with exponential backoff, and each batch is applied at most once however many times it is sent. Nothing is sent
+ * until the writer has opened the database, which wakes the agent.
+ */
+@Slf4j
+class StatisticsSyncAgent implements Runnable {
+
+    private static final long MIN_BACKOFF_MS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(5);
+    // How long to wait for more work when the outbox is empty.
+    private static final long IDLE_WAIT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private final StatisticsPlugin plugin;
+    private final StatisticsOutbox outbox;
+    private final Thread thread;
+    private final Object lock = new Object();
+
+    private volatile boolean running;
+    private boolean woken;
+
+    StatisticsSyncAgent(StatisticsPlugin plugin, StatisticsOutbox outbox) {
+        this.plugin = plugin;
+        this.outbox = outbox;
+        thread = new Thread(this, "statistics-sync");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        thread.interrupt();
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Tells the agent that a batch has been added to the outbox, or that the database has been opened.
+     */
+    void wake() {
+        synchronized (lock) {
+            woken = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        long backoff = 0;
+
+        while (running) {
+            StatisticsOutbox.Batch batch;
+
+            try {
+                batch = plugin.database.isReady() ? outbox.peek() : null;
+
+                if (batch == null) {
+                    waitForWork(IDLE_WAIT_MS);
+                    continue;
+                }
+
+                plugin.database.writeBuffer(batch.buffer(), batch.id());
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                if (backoff == 0) {
+                    log.warn("Failed to send stored statistics; retrying with backoff", e);
+                }
+
+                backoff = backoff == 0 ? MIN_BACKOFF_MS : Math.min(backoff * 2, MAX_BACKOFF_MS);
+
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interruptedException) {
+                    break;
+                }
+
+                continue;
+            }
+
+            if (backoff > 0) {
+                log.info("Database is reachable again; sending stored statistics");
+                backoff = 0;
+            }
+
+            sent(batch);
+        }
+    }
+
+    /**
+     * Removes a batch from the outbox once it has been written. The batch is in the database by now, so failures here
+     * are only logged rather than being taken for failures to send it.
+     */
+    private void sent(StatisticsOutbox.Batch batch) {
+        try {
+            outbox.remove(batch.batchSeq());
+        } catch (Exception e) {
+            // Sending the batch again is harmless, as the database skips batches it has already applied.
+            log.warn("Failed to remove sent statistics batch {} from the outbox", batch.id(), e);
+        }
+
+        try {
+            plugin.markUpdated(batch.buffer());
+        } catch (Exception e) {
+            log.warn("Failed to refresh the overlays after sending stored statistics", e);
+        }
+    }
+
+    private void waitForWork(long timeoutMs) throws InterruptedException {
+        synchronized (lock) {
+            if (!woken) {
+                lock.wait(timeoutMs);
+            }
+
+            woken = false;
+        }
+    }
+}
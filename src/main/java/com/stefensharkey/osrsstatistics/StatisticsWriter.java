@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains captured statistics on a single dedicated thread, merging them in memory and periodically writing the merged
+ * totals to the database in one transaction.
+ *
+ * <p>Every event is appended to the journal before it is queued. The queue is only the fast path: any event missing
+ * from it, whether dropped from a full queue or left over from an earlier run, is read back from the journal instead.
+ * The writer connects to the database itself, so events captured while it is unreachable wait in the journal.
+ */
+@Slf4j
+class StatisticsWriter implements Runnable {
+
+    // How long the client thread may wait for room in a full queue before the event is dropped.
+    private static final long OFFER_TIMEOUT_MS = 50;
+
+    // Upper bound on how long the writer sleeps, so that stop and flush requests are noticed promptly.
+    private static final long MAX_POLL_MS = 250;
+
+    // How often hourly statistics are checked for rows old enough to roll up into daily ones.
+    private static final long ROLL_UP_INTERVAL_NS = TimeUnit.HOURS.toNanos(1);
+
+    // How long to wait before retrying the first failed flush. Each further failure doubles the wait, up to the flush
+    // interval.
+    private static final long MIN_RETRY_DELAY_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private final StatisticsPlugin plugin;
+    private final StatisticsConfig config;
+    private final StatisticsJournal journal;
+    private volatile BlockingQueue<StatisticsJournal.Entry> queue;
+    // The queue replaced by the last resize, which is drained alongside the new one in case anything arrives late.
+    private BlockingQueue<StatisticsJournal.Entry> retiredQueue;
+    private final StatisticsBuffer buffer = new StatisticsBuffer();
+    private final Thread thread;
+
+    private volatile boolean running;
+    private volatile boolean flushRequested;
+    private volatile boolean resizeRequested;
+    // The end of the journal as the writer was created, and the last event from it already stored in the outbox.
+    private final long startSequence;
+    private final long storedSequence;
+    // Whether the database has told the writer where in the journal to start from.
+    private boolean registered;
+    // The sequence number of the next journaled event to be buffered. Until the writer is registered, every
+    // journaled event is left to be read back from the journal.
+    private long nextSequence = Long.MAX_VALUE;
+    // How many events have been merged into the buffer since it was last written or stored.
+    private int bufferedEvents;
+    // How long to wait after the last flush before retrying it, or 0 if it succeeded.
+    private long retryDelay;
+
+    /**
+     * Creates a writer for the given journal. Events up to the given sequence number are already stored in the
+     * outbox, and will reach the database through it instead.
+     */
+    StatisticsWriter(StatisticsPlugin plugin, StatisticsConfig config, StatisticsJournal journal,
+                     long storedSequence) {
+        this.plugin = plugin;
+        this.config = config;
+        this.journal = journal;
+        this.storedSequence = storedSequence;
+        startSequence = journal.getNextSequence();
+        queue = new ArrayBlockingQueue<>(Math.max(1, config.writerQueueCapacity()));
+        thread = new Thread(this, "statistics-writer");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stops the writer, writes whatever is still buffered or queued, and waits for the writer thread to finish.
+     */
+    void stop() {
+        running = false;
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Asks the writer to write its buffered totals as soon as possible, such as when the player logs out.
+     */
+    void requestFlush() {
+        flushRequested = true;
+    }
+
+    /**
+     * Asks the writer to replace its queue with one of the configured capacity. The writer thread makes the swap, so
+     * the caller never waits on it. Anything submitted to the old queue too late to be drained is read back from the
+     * journal.
+     */
+    void resizeQueue() {
+        resizeRequested = true;
+    }
+
+    /**
+     * Returns how many events are waiting in the queue for the writer thread.
+     */
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    void submit(StatisticsEvent event) {
+        long sequence = journal.append(event);
+        plugin.metrics.increment("events.captured");
+
+        try {
+            // Apply backpressure to the caller briefly; past that, leaving the event for the writer to read back from
+            // the journal is preferable to freezing the client thread behind a slow database.
+            if (!queue.offer(new StatisticsJournal.Entry(sequence, event), OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                if (sequence < 0) {
+                    log.warn("Statistics queue is full; dropping {}", event);
+                    plugin.metrics.increment("events.dropped");
+                } else {
+                    log.debug("Statistics queue is full; {} will be read back from the journal", event);
+                    plugin.metrics.increment("events.deferred");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        long lastFlush = System.nanoTime();
+        // Roll up once shortly after starting, in case the client hasn't been running for a while.
+        long lastRollUp = lastFlush - ROLL_UP_INTERVAL_NS;
+
+        if (!connect()) {
+            retryDelay = MIN_RETRY_DELAY_NS;
+        }
+
+        while (running) {
+            if (resizeRequested) {
+                resizeRequested = false;
+                retiredQueue = queue;
+                queue = new ArrayBlockingQueue<>(Math.max(1, config.writerQueueCapacity()));
+                drainQueue();
+            }
+
+            long flushInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.writerFlushInterval()));
+            long remaining = lastFlush + (retryDelay > 0 ? retryDelay : flushInterval) - System.nanoTime();
+
+            // While waiting to retry a failed flush, keep merging new events into the buffer however large it has
+            // grown, rather than leaving them to back up in the queue.
+            if (remaining > 0
+                && (retryDelay > 0 || !flushRequested && buffer.size() < Math.max(1, config.writerBatchSize()))) {
+                try {
+                    StatisticsJournal.Entry entry = queue.poll(Math.min(remaining,
+                                                                        TimeUnit.MILLISECONDS.toNanos(MAX_POLL_MS)),
+                                                               TimeUnit.NANOSECONDS);
+
+                    if (entry != null) {
+                        add(entry);
+                        drainQueue();
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            } else {
+                flushRequested = false;
+                boolean flushed = connect() && flush();
+                lastFlush = System.nanoTime();
+
+                if (!flushed) {
+                    long maxRetryDelay = Math.max(flushInterval, MIN_RETRY_DELAY_NS);
+                    retryDelay = retryDelay == 0 ? MIN_RETRY_DELAY_NS : Math.min(retryDelay * 2, maxRetryDelay);
+                    continue;
+                }
+
+                retryDelay = 0;
+
+                if (lastFlush - lastRollUp >= ROLL_UP_INTERVAL_NS) {
+                    rollUp();
+                    lastRollUp = lastFlush;
+                }
+
+                refreshReplica();
+            }
+        }
+
+        // Write out anything captured before the plugin was stopped. Without a database, it is left in the journal.
+        drainQueue();
+
+        if (registered && plugin.database.isReady()) {
+            flush();
+        }
+    }
+
+    /**
+     * Opens the database if it isn't already, and the first time, picks up every journaled event it is missing.
+     * Returns false if the database can't be reached, in which case the attempt is left to the retry path.
+     */
+    private boolean connect() {
+        if (registered && plugin.database.isReady()) {
+            return true;
+        }
+
+        try {
+            plugin.database.open();
+
+            if (!registered) {
+                // Events already stored in the outbox will reach the database through it, so they mustn't be
+                // replayed too. A database that hasn't seen the journal before takes it up from where this run began.
+                nextSequence = Math.max(plugin.database.registerJournal(journal.getId(), startSequence),
+                                        storedSequence) + 1;
+                registered = true;
+
+                // Pick up anything journaled but never written, such as events captured just before a crash or while
+                // the database was unreachable.
+                recover(journal.getNextSequence());
+            }
+        } catch (Exception e) {
+            if (retryDelay == 0) {
+                log.warn("Failed to open the statistics database; retrying with backoff", e);
+            } else {
+                log.debug("Failed to open the statistics database", e);
+            }
+
+            return false;
+        }
+
+        plugin.databaseOpened();
+        plugin.syncAgent.wake();
+        return true;
+    }
+
+    private void drainQueue() {
+        StatisticsJournal.Entry entry;
+
+        if (retiredQueue != null) {
+            while ((entry = retiredQueue.poll()) != null) {
+                add(entry);
+            }
+        }
+
+        while ((entry = queue.poll()) != null) {
+            add(entry);
+        }
+    }
+
+    private void add(StatisticsJournal.Entry entry) {
+        if (entry.sequence() < 0) {
+            buffer.add(entry.event());
+            bufferedEvents++;
+        } else if (entry.sequence() >= nextSequence) {
+            // Anything between the last event buffered and this one never made it through the queue.
+            recover(entry.sequence());
+            buffer.add(entry.event());
+            bufferedEvents++;
+            nextSequence = entry.sequence() + 1;
+            buffer.setJournalSequence(entry.sequence());
+        }
+    }
+
+    /**
+     * Buffers every journaled event from the next expected sequence number up to, but not including, the given one.
+     */
+    private void recover(long endSequence) {
+        if (nextSequence >= endSequence) {
+            return;
+        }
+
+        log.debug("Recovering {} statistics events from the journal", endSequence - nextSequence);
+
+        for (long sequence = nextSequence; sequence < endSequence; sequence++) {
+            StatisticsEvent event = journal.read(sequence);
+
+            if (event != null) {
+                buffer.add(event);
+                bufferedEvents++;
+            }
+        }
+
+        nextSequence = endSequence;
+        buffer.setJournalSequence(endSequence - 1);
+    }
+
+    /**
+     * Writes the buffer to the database, or stores it in the outbox. Returns false if the buffer has been kept to be
+     * retried.
+     */
+    private boolean flush() {
+        if (buffer.isEmpty()) {
+            return true;
+        }
+
+        // Once anything is waiting in the outbox, queue up behind it rather than writing out of order.
+        if (isOfflineModeEnabled() && !plugin.outbox.isEmpty()) {
+            return store();
+        }
+
+        try {
+            plugin.database.writeBuffer(buffer);
+        } catch (Exception e) {
+            plugin.metrics.increment("writer.failedFlushes");
+
+            if (isOfflineModeEnabled()) {
+                log.warn("Failed to write {} buffered statistics rows; storing them until the database is reachable",
+                         buffer.size(), e);
+                return store();
+            }
+
+            // Keep the merged totals so that they are retried, only reporting the first of a run of failures in full.
+            if (retryDelay == 0) {
+                log.error("Failed to write {} buffered statistics rows; retrying with backoff", buffer.size(), e);
+            } else {
+                log.debug("Failed to write {} buffered statistics rows", buffer.size(), e);
+            }
+
+            return false;
+        }
+
+        plugin.metrics.add("events.written", bufferedEvents);
+        writeReplica();
+        clearWritten(true);
+        return true;
+    }
+
+    /**
+     * Moves the buffer into the outbox for the sync agent to send on. Returns false if the buffer has been kept to be
+     * retried.
+     */
+    private boolean store() {
+        try {
+            plugin.outbox.add(buffer);
+        } catch (Exception e) {
+            log.error("Failed to store {} buffered statistics rows", buffer.size(), e);
+            return false;
+        }
+
+        plugin.metrics.add("events.stored", bufferedEvents);
+        plugin.syncAgent.wake();
+
+        // Overlays reading from the replica can show the stored totals straight away. The outbox is as durable as the
+        // journal, so the journal no longer needs these events.
+        clearWritten(writeReplica());
+        return true;
+    }
+
+    /**
+     * Empties the buffer once its totals are in the database or the outbox, and releases its events from the journal.
+     * Failures here are only logged, as letting them reach the retry path would write the same totals twice.
+     */
+    private void clearWritten(boolean updateOverlays) {
+        long journalSequence = buffer.getJournalSequence();
+
+        if (updateOverlays) {
+            try {
+                plugin.markUpdated(buffer);
+            } catch (Exception e) {
+                log.warn("Failed to refresh the overlays after writing statistics", e);
+            }
+        }
+
+        buffer.clear();
+        bufferedEvents = 0;
+
+        if (journalSequence >= 0) {
+            try {
+                journal.release(journalSequence);
+            } catch (Exception e) {
+                log.warn("Failed to release written statistics from the journal", e);
+            }
+        }
+    }
+
+    /**
+     * Applies the buffer to the local replica, if there is one. Returns whether the replica holds the buffer's totals.
+     */
+    private boolean writeReplica() {
+        LocalReplica replica = plugin.replica;
+
+        if (replica == null) {
+            return false;
+        }
+
+        try {
+            replica.write(buffer);
+            return true;
+        } catch (Exception e) {
+            // Copy everything across again rather than leave the replica missing these totals.
+            log.warn("Failed to write {} buffered statistics rows to the local replica", buffer.size(), e);
+            replica.invalidate();
+            return false;
+        }
+    }
+
+    private void refreshReplica() {
+        LocalReplica replica = plugin.replica;
+
+        // Totals still waiting in the outbox aren't on the server yet, so copying from the server would lose them.
+        if (replica == null || !plugin.outbox.isEmpty()) {
+            return;
+        }
+
+        try {
+            if (replica.refresh(plugin.database, TimeUnit.MINUTES.toNanos(Math.max(1, config.replicaRefreshInterval())))) {
+                plugin.replicaRefreshed();
+            }
+        } catch (Exception e) {
+            log.warn("Failed to refresh the local replica", e);
+        }
+    }
+
+    private boolean isOfflineModeEnabled() {
+        // A local SQLite database is always reachable, so it has no need for an outbox.
+        return config.isOfflineModeEnabled() && config.databaseType() != Database.DatabaseType.SQLITE;
+    }
+
+    private void rollUp() {
+        try {
+            plugin.database.rollUp();
+
+            LocalReplica replica = plugin.replica;
+
+            if (replica != null) {
+                replica.getDatabase().rollUp();
+            }
+        } catch (Exception e) {
+            // Nothing is lost by waiting, so just try again at the next interval.
+            log.error("Failed to roll up hourly statistics", e);
+        }
+    }
+}
@@ -27,15 +27,12 @@ package com.stefensharkey.osrsstatistics;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.api.Actor;
 import net.runelite.api.Client;
-import net.runelite.api.Perspective;
 import net.runelite.api.Skill;
 import net.runelite.api.Tile;
-import net.runelite.api.coords.LocalPoint;
 import net.runelite.api.coords.WorldPoint;
 import net.runelite.client.ui.overlay.Overlay;
 import net.runelite.client.ui.overlay.OverlayLayer;
 import net.runelite.client.ui.overlay.OverlayPosition;
-import net.runelite.client.ui.overlay.OverlayUtil;
 import net.runelite.client.ui.overlay.tooltip.Tooltip;
 import net.runelite.client.ui.overlay.tooltip.TooltipManager;
 import net.runelite.client.util.ColorUtil;
@@ -43,24 +40,28 @@ import net.runelite.client.util.ColorUtil;
 import javax.inject.Inject;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
-import java.awt.Polygon;
-import java.time.LocalDateTime;
-import java.util.EnumMap;
-import java.util.Map;
+import java.util.function.LongFunction;
 
 @Slf4j
 public class StatisticsXpOverlay extends Overlay {
 
+    // Tile keys use the low 34 bits, so the tooltip highlighting mode is stored above them.
+    private static final int TOOLTIP_MODE_SHIFT = 40;
+
     private final Client client;
     private final StatisticsPlugin plugin;
     private final StatisticsConfig config;
     private final TooltipManager tooltipManager;
 
-    private Map<WorldPoint, EnumMap<Skill, Integer[]>> xpMap;
+    private final Snapshot<TileStore> xpSnapshot = new Snapshot<>(TileStore.forXp());
+    private final TileRenderModel renderModel = new TileRenderModel();
+    private final TooltipCache tooltipCache = new TooltipCache();
+    private final LongFunction<Tooltip> tooltipBuilder = this::buildTooltip;
     private int tileIndex;
     private int tooltipIndex;
 
-    private LocalDateTime lastUpdated;
+    private int cacheVersion = -1;
+    private int lastRegionKey = -1;
 
     @Inject
     StatisticsXpOverlay(Client client, StatisticsPlugin plugin, StatisticsConfig config, TooltipManager tooltipManager) {
@@ -70,21 +71,22 @@ public class StatisticsXpOverlay extends Overlay {
         this.plugin = plugin;
         this.config = config;
         this.tooltipManager = tooltipManager;
-        updateMaps();
     }
 
     @Override
     public Dimension render(Graphics2D graphics) {
         if (config.isXpOverlayEnabled()) {
-            updateMaps();
+            try (StatisticsMetrics.Timer timer = plugin.metrics.time("overlay.xp")) {
+                updateMaps();
 
-            tileIndex = config.shouldXpOverlayShowTotal() ? 0 : 1;
-            tooltipIndex = config.shouldXpTooltipHighlightTotal() ? 0 : 1;
+                tileIndex = config.shouldXpOverlayShowTotal() ? 0 : 1;
+                tooltipIndex = config.shouldXpTooltipHighlightTotal() ? 0 : 1;
 
-            renderTiles(graphics);
+                renderTiles(graphics);
 
-            if (config.isXpTooltipEnabled()) {
-                renderTooltip();
+                if (config.isXpTooltipEnabled()) {
+                    renderTooltip();
+                }
             }
         }
 
@@ -96,93 +98,108 @@ public class StatisticsXpOverlay extends Overlay {
 
         if (selectedTile != null) {
             WorldPoint worldPoint = selectedTile.getWorldLocation();
+            long key = TileStore.pack(worldPoint.getX(), worldPoint.getY(), worldPoint.getPlane());
+            // The highlighting mode changes the tooltip, so it is part of the key.
+            Tooltip tooltip = tooltipCache.get(key | (long) tooltipIndex << TOOLTIP_MODE_SHIFT, xpSnapshot.getVersion(),
+                                               tooltipBuilder);
 
-            if (xpMap.containsKey(worldPoint)) {
-                StringBuilder tooltip = new StringBuilder()
-                        .append("X: ").append(worldPoint.getX())
-                        .append(", Y: ").append(worldPoint.getY())
-                        .append(", Plane: ").append(worldPoint.getPlane())
-                        .append("</br>");
-
-                for (Map.Entry<WorldPoint, EnumMap<Skill, Integer[]>> entry : xpMap.entrySet()) {
-                    if (entry.getKey().equals(worldPoint)) {
-                        Map<Skill, Integer[]> skillEnumMap = entry.getValue();
-                        int max = Integer.MIN_VALUE;
-
-                        for (Integer[] tileValues : skillEnumMap.values()) {
-                            max = Math.max(tileValues[tooltipIndex], max);
-                        }
-
-                        for (Map.Entry<Skill, Integer[]> entry1 : skillEnumMap.entrySet()) {
-                            Integer[] experience = entry1.getValue();
-
-                            if (experience[0] > 0) {
-                                tooltip
-                                    .append(ColorUtil.colorTag(
-                                            Utilities.getHeatMapColor(experience[tooltipIndex] / (float) max)))
-                                    .append(entry1.getKey().getName())
-                                    .append(": ")
-                                    .append(experience[0])
-                                    .append(" (")
-                                    .append(experience[1])
-                                    .append(")</br>");
-                            }
-                        }
-                    }
-                }
-
-                // Display tooltip, cutting off the final line break.
-                tooltipManager.add(new Tooltip(tooltip.substring(0, tooltip.lastIndexOf("</br>"))));
+            if (tooltip != null) {
+                tooltipManager.add(tooltip);
             }
         }
     }
 
-    private void renderTiles(Graphics2D graphics) {
-        if (xpMap != null) {
-            int max = Integer.MIN_VALUE;
+    private Tooltip buildTooltip(long tooltipKey) {
+        TileStore xpTiles = xpSnapshot.get();
+        long key = tooltipKey & ~(1L << TOOLTIP_MODE_SHIFT);
+        int highlightIndex = (int) (tooltipKey >>> TOOLTIP_MODE_SHIFT);
+        int index = xpTiles.indexOf(key);
 
-            for (Map<Skill, Integer[]> entry : xpMap.values()) {
-                for (Integer[] entry1 : entry.values()) {
-                    max = Math.max(entry1[tileIndex],  max);
-                }
-            }
+        if (index < 0) {
+            return null;
+        }
 
-            for (Map.Entry<WorldPoint, EnumMap<Skill, Integer[]>> entry : xpMap.entrySet()) {
-                WorldPoint point = entry.getKey();
-                Map<Skill, Integer[]> value = entry.getValue();
+        StringBuilder tooltip = new StringBuilder()
+                .append("X: ").append(TileStore.unpackX(key))
+                .append(", Y: ").append(TileStore.unpackY(key))
+                .append(", Plane: ").append(TileStore.unpackPlane(key))
+                .append("</br>");
 
-                LocalPoint tileLocation = LocalPoint.fromWorld(client, point.getX(), point.getY());
+        int max = Integer.MIN_VALUE;
 
-                if (value != null && tileLocation != null && point.getPlane() == client.getPlane()) {
-                    renderTile(graphics, tileLocation, value, max);
-                }
+        for (int channel = highlightIndex; channel < xpTiles.getChannels(); channel += 2) {
+            max = Math.max(xpTiles.value(index, channel), max);
+        }
+
+        // For every skill except for Skill.OVERALL, list the XP gained on this tile.
+        for (int x = 0; x < Skill.values().length - 1; x++) {
+            Skill skill = Skill.values()[x];
+            int xp = xpTiles.value(index, TileStore.xpChannel(skill, false));
+            int occurrences = xpTiles.value(index, TileStore.xpChannel(skill, true));
+
+            if (xp > 0) {
+                int highlightValue = highlightIndex == 0 ? xp : occurrences;
+
+                tooltip
+                    .append(ColorUtil.colorTag(Utilities.getHeatMapColor(highlightValue / (float) max)))
+                    .append(skill.getName())
+                    .append(": ")
+                    .append(xp)
+                    .append(" (")
+                    .append(occurrences)
+                    .append(")</br>");
             }
         }
+
+        // Cut off the final line break.
+        return new Tooltip(tooltip.substring(0, tooltip.lastIndexOf("</br>")));
     }
 
-    private void renderTile(Graphics2D graphics, LocalPoint tileLocation, Map<Skill, Integer[]> tileValue, int max) {
-        Polygon polygon = Perspective.getCanvasTilePoly(client, tileLocation);
+    private void renderTiles(Graphics2D graphics) {
+        TileStore xpTiles = xpSnapshot.get();
 
-        if (polygon != null) {
-            double renderValue = 0.0;
+        if (renderModel.isStale(xpTiles, tileIndex)) {
+            int channels = xpTiles.getChannels();
+            double[] values = new double[xpTiles.size()];
+            int max = Integer.MIN_VALUE;
 
-            for (Integer[] value : tileValue.values()) {
-                renderValue += value[tileIndex];
+            // Channels alternate between XP total and XP drop count, so step over the ones not being shown.
+            for (int index = 0; index < xpTiles.size(); index++) {
+                for (int channel = tileIndex; channel < channels; channel += 2) {
+                    int value = xpTiles.value(index, channel);
+                    values[index] += value;
+                    max = Math.max(value, max);
+                }
             }
 
-            OverlayUtil.renderPolygon(graphics, polygon, Utilities.getHeatMapColor((float) (renderValue / max)));
+            renderModel.setData(xpTiles, tileIndex, values, max);
         }
+
+        renderModel.render(client, graphics);
     }
 
     private void updateMaps() {
         Actor player = client.getLocalPlayer();
 
-        // If the player exists, and has received an XP update since the overlay last checked for one, repopulate the
-        // local XP map and make note of it.
-        if (player != null && (lastUpdated == null || lastUpdated.isBefore(plugin.lastUpdatedXp))) {
-            lastUpdated = plugin.lastUpdatedXp;
+        if (player != null) {
+            WorldPoint location = player.getWorldLocation();
+            int regionKey = (location.getPlane() << 16) | location.getRegionID();
+
+            plugin.xpCache.update(player.getName(), location);
 
-            xpMap = plugin.database.retrieveXpMap(player);
+            // If the cache has loaded new XP data, or the player has moved into another region, rebuild the local
+            // XP map from the regions around the player. The map is built in the background and swapped in whole.
+            int version = plugin.xpCache.getVersion();
+
+            if ((cacheVersion != version || lastRegionKey != regionKey)
+                && xpSnapshot.refresh(() -> plugin.reader.submit(() -> {
+                    TileStore xpTiles = TileStore.forXp();
+                    plugin.xpCache.forEachVisible(location, xpTiles::addAll);
+                    return xpTiles;
+                }))) {
+                cacheVersion = version;
+                lastRegionKey = regionKey;
+            }
         }
     }
 }
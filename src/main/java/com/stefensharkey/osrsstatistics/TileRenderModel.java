@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stefensharkey.osrsstatistics;
+
+import net.runelite.api.Client;
+import net.runelite.api.Constants;
+import net.runelite.api.Perspective;
+import net.runelite.api.Point;
+import net.runelite.api.coords.LocalPoint;
+import net.runelite.client.ui.overlay.OverlayUtil;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * What a heat map overlay draws each frame. Tile colours are worked out once per change of data, tiles in the loaded
+ * scene are grouped into a grid of cells so that cells outside the viewport can be skipped whole, and projected
+ * polygons are kept until the camera, viewport or scene moves. An unchanged frame only redraws the kept polygons.
+ */
+class TileRenderModel {
+
+    // Cells are one scene chunk across.
+    private static final int CELL_SHIFT = 3;
+    private static final int CELL_SIZE = 1 << CELL_SHIFT;
+    private static final int CELLS = Constants.SCENE_SIZE >> CELL_SHIFT;
+    // Pixels to widen a cell's projected corners by, as terrain height can raise its tiles above them.
+    private static final int CELL_MARGIN = 64;
+
+    // The data, and the colour of each of its tiles.
+    private TileStore tiles;
+    private int mode = -1;
+    private Color[] colors = new Color[0];
+
+    // Indices of the tiles in each cell of the loaded scene.
+    private final int[][] cells = new int[CELLS * CELLS][];
+    private boolean gridStale = true;
+    private int gridBaseX;
+    private int gridBaseY;
+    private int gridPlane;
+
+    // Everything the projection depends on, and the polygons last projected.
+    private final int[] projectionState = new int[10];
+    private boolean projectionStale = true;
+    private Polygon[] polygons = new Polygon[0];
+    private Color[] polygonColors = new Color[0];
+    private int polygonCount;
+
+    /**
+     * Returns whether the model was built from other data, or with the tiles valued another way, and so needs
+     * {@link #setData} to be called.
+     */
+    boolean isStale(TileStore tiles, int mode) {
+        return this.tiles != tiles || this.mode != mode;
+    }
+
+    /**
+     * Replaces the data to draw. Each tile is coloured by its value relative to the given maximum.
+     */
+    void setData(TileStore tiles, int mode, double[] values, double max) {
+        this.tiles = tiles;
+        this.mode = mode;
+
+        colors = new Color[tiles.size()];
+
+        for (int index = 0; index < colors.length; index++) {
+            colors[index] = Utilities.getHeatMapColor((float) (values[index] / max));
+        }
+
+        gridStale = true;
+    }
+
+    void render(Client client, Graphics2D graphics) {
+        if (tiles == null) {
+            return;
+        }
+
+        if (gridStale || gridBaseX != client.getBaseX() || gridBaseY != client.getBaseY()
+            || gridPlane != client.getPlane()) {
+            buildGrid(client.getBaseX(), client.getBaseY(), client.getPlane());
+        }
+
+        if (projectionStale || updateProjectionState(client)) {
+            project(client);
+        }
+
+        for (int index = 0; index < polygonCount; index++) {
+            OverlayUtil.renderPolygon(graphics, polygons[index], polygonColors[index]);
+        }
+    }
+
+    private void buildGrid(int baseX, int baseY, int plane) {
+        int[] counts = new int[cells.length];
+        int[] cellOf = new int[tiles.size()];
+
+        for (int index = 0; index < tiles.size(); index++) {
+            long key = tiles.keyAt(index);
+            int sceneX = TileStore.unpackX(key) - baseX;
+            int sceneY = TileStore.unpackY(key) - baseY;
+
+            if (TileStore.unpackPlane(key) != plane || sceneX < 0 || sceneY < 0 || sceneX >= Constants.SCENE_SIZE
+                || sceneY >= Constants.SCENE_SIZE) {
+                cellOf[index] = -1;
+            } else {
+                cellOf[index] = (sceneX >> CELL_SHIFT) * CELLS + (sceneY >> CELL_SHIFT);
+                counts[cellOf[index]]++;
+            }
+        }
+
+        for (int cell = 0; cell < cells.length; cell++) {
+            cells[cell] = counts[cell] == 0 ? null : new int[counts[cell]];
+        }
+
+        Arrays.fill(counts, 0);
+
+        for (int index = 0; index < cellOf.length; index++) {
+            if (cellOf[index] >= 0) {
+                cells[cellOf[index]][counts[cellOf[index]]++] = index;
+            }
+        }
+
+        gridBaseX = baseX;
+        gridBaseY = baseY;
+        gridPlane = plane;
+        gridStale = false;
+        projectionStale = true;
+    }
+
+    /**
+     * Records the camera, viewport and scene, returning whether any of them have changed since the last projection.
+     */
+    private boolean updateProjectionState(Client client) {
+        // Every value is recorded, so no short-circuiting.
+        return updateProjectionState(0, client.getCameraX())
+               | updateProjectionState(1, client.getCameraY())
+               | updateProjectionState(2, client.getCameraZ())
+               | updateProjectionState(3, client.getCameraPitch())
+               | updateProjectionState(4, client.getCameraYaw())
+               | updateProjectionState(5, client.getScale())
+               | updateProjectionState(6, client.getViewportXOffset())
+               | updateProjectionState(7, client.getViewportYOffset())
+               | updateProjectionState(8, client.getViewportWidth())
+               | updateProjectionState(9, client.getViewportHeight());
+    }
+
+    private boolean updateProjectionState(int index, int value) {
+        if (projectionState[index] == value) {
+            return false;
+        }
+
+        projectionState[index] = value;
+        return true;
+    }
+
+    private void project(Client client) {
+        updateProjectionState(client);
+
+        Rectangle viewport = new Rectangle(client.getViewportXOffset(), client.getViewportYOffset(),
+                                           client.getViewportWidth(), client.getViewportHeight());
+        polygonCount = 0;
+
+        for (int cellX = 0; cellX < CELLS; cellX++) {
+            for (int cellY = 0; cellY < CELLS; cellY++) {
+                int[] cell = cells[cellX * CELLS + cellY];
+
+                if (cell == null || !isCellVisible(client, cellX, cellY, viewport)) {
+                    continue;
+                }
+
+                for (int index : cell) {
+                    long key = tiles.keyAt(index);
+                    LocalPoint tileLocation = LocalPoint.fromWorld(client, TileStore.unpackX(key),
+                                                                   TileStore.unpackY(key));
+                    Polygon polygon = tileLocation == null ? null : Perspective.getCanvasTilePoly(client, tileLocation);
+
+                    if (polygon != null && polygon.intersects(viewport)) {
+                        addPolygon(polygon, colors[index]);
+                    }
+                }
+            }
+        }
+
+        projectionStale = false;
+    }
+
+    /**
+     * Returns whether any of the cell could be in the viewport, judging by where its corners are drawn.
+     */
+    private boolean isCellVisible(Client client, int cellX, int cellY, Rectangle viewport) {
+        Rectangle bounds = null;
+
+        for (int corner = 0; corner < 4; corner++) {
+            int sceneX = (cellX << CELL_SHIFT) + ((corner & 1) == 0 ? 0 : CELL_SIZE - 1);
+            int sceneY = (cellY << CELL_SHIFT) + ((corner & 2) == 0 ? 0 : CELL_SIZE - 1);
+            Point point = Perspective.localToCanvas(client, new LocalPoint(sceneX * Perspective.LOCAL_TILE_SIZE,
+                                                                           sceneY * Perspective.LOCAL_TILE_SIZE),
+                                                    gridPlane);
+
+            if (point == null) {
+                // Part of the cell is behind the camera, so the rest may fill the screen.
+                return true;
+            }
+
+            if (bounds == null) {
+                bounds = new Rectangle(point.getX(), point.getY(), 0, 0);
+            } else {
+                bounds.add(point.getX(), point.getY());
+            }
+        }
+
+        bounds.grow(CELL_MARGIN, CELL_MARGIN);
+        return bounds.intersects(viewport);
+    }
+
+    private void addPolygon(Polygon polygon, Color color) {
+        if (polygonCount == polygons.length) {
+            int capacity = Math.max(64, polygonCount * 2);
+            polygons = Arrays.copyOf(polygons, capacity);
+            polygonColors = Arrays.copyOf(polygonColors, capacity);
+        }
+
+        polygons[polygonCount] = polygon;
+        polygonColors[polygonCount] = color;
+        polygonCount++;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import net.runelite.api.Skill;
+
+import java.util.Arrays;
+
+/**
+ * Statistics per tile, keyed by the tile's coordinates packed into a long and held in flat primitive arrays.
+ *
+ * <p>Every tile has a fixed number of integer channels, such as the XP total and XP drop count of each skill. Tiles may
+ * also carry a list of id/value details, such as the number of kills of each NPC.</p>
+ *
+ * <p>Not thread-safe. A store must not be modified once it has been handed to another thread.</p>
+ */
+final class TileStore {
+
+    static final int KILL_CHANNELS = 1;
+    static final int XP_CHANNELS = (Skill.values().length - 1) << 1;
+
+    private static final int NONE = -1;
+
+    private final int channels;
+
+    // Open addressing hash table of tile indexes, with linear probing.
+    private int[] table;
+    private long[] keys;
+    private int[] values;
+    private int[] firstDetails;
+    private int size;
+
+    private int[] detailIds;
+    private int[] detailValues;
+    private int[] nextDetails;
+    private int detailSize;
+
+    TileStore(int channels) {
+        this(channels, 16);
+    }
+
+    TileStore(int channels, int expectedTiles) {
+        this.channels = channels;
+
+        int capacity = Math.max(16, Integer.highestOneBit(Math.max(1, expectedTiles) - 1) << 2);
+        table = new int[capacity];
+        Arrays.fill(table, NONE);
+        keys = new long[capacity >> 1];
+        values = new int[(capacity >> 1) * channels];
+        firstDetails = new int[capacity >> 1];
+
+        detailIds = new int[0];
+        detailValues = new int[0];
+        nextDetails = new int[0];
+    }
+
+    static TileStore forKills() {
+        return new TileStore(KILL_CHANNELS);
+    }
+
+    static TileStore forXp() {
+        return new TileStore(XP_CHANNELS);
+    }
+
+    /**
+     * Returns the XP channel of the skill, holding either its XP total or its number of XP drops.
+     */
+    static int xpChannel(Skill skill, boolean occurrences) {
+        return (skill.ordinal() << 1) + (occurrences ? 1 : 0);
+    }
+
+    static long pack(int x, int y, int plane) {
+        return ((long) plane << 32) | ((long) (x & 0xFFFF) << 16) | (y & 0xFFFF);
+    }
+
+    static int unpackX(long key) {
+        return (int) (key >>> 16) & 0xFFFF;
+    }
+
+    static int unpackY(long key) {
+        return (int) key & 0xFFFF;
+    }
+
+    static int unpackPlane(long key) {
+        return (int) (key >>> 32);
+    }
+
+    int getChannels() {
+        return channels;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the index of the tile, or -1 if the store holds nothing for it.
+     */
+    int indexOf(long key) {
+        int mask = table.length - 1;
+
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int index = table[slot];
+
+            if (index == NONE || keys[index] == key) {
+                return index;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the tile, adding it with every channel set to zero if the store holds nothing for it.
+     */
+    int getOrAdd(long key) {
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+
+        for (; table[slot] != NONE; slot = (slot + 1) & mask) {
+            if (keys[table[slot]] == key) {
+                return table[slot];
+            }
+        }
+
+        if (size == keys.length) {
+            grow();
+            return getOrAdd(key);
+        }
+
+        int index = size++;
+        table[slot] = index;
+        keys[index] = key;
+        firstDetails[index] = NONE;
+
+        return index;
+    }
+
+    long keyAt(int index) {
+        return keys[index];
+    }
+
+    int value(int index, int channel) {
+        return values[index * channels + channel];
+    }
+
+    void add(int index, int channel, int value) {
+        values[index * channels + channel] += value;
+    }
+
+    /**
+     * Adds the value onto the tile's detail with the given id, creating the detail if the tile has none.
+     */
+    void addDetail(int index, int id, int value) {
+        for (int detail = firstDetails[index]; detail != NONE; detail = nextDetails[detail]) {
+            if (detailIds[detail] == id) {
+                detailValues[detail] += value;
+                return;
+            }
+        }
+
+        if (detailSize == detailIds.length) {
+            int capacity = Math.max(16, detailSize << 1);
+            detailIds = Arrays.copyOf(detailIds, capacity);
+            detailValues = Arrays.copyOf(detailValues, capacity);
+            nextDetails = Arrays.copyOf(nextDetails, capacity);
+        }
+
+        int detail = detailSize++;
+        detailIds[detail] = id;
+        detailValues[detail] = value;
+        nextDetails[detail] = firstDetails[index];
+        firstDetails[index] = detail;
+    }
+
+    /**
+     * Returns the tile's first detail, or -1 if it has none. Use {@link #nextDetail(int)} to walk the rest.
+     */
+    int firstDetail(int index) {
+        return firstDetails[index];
+    }
+
+    int nextDetail(int detail) {
+        return nextDetails[detail];
+    }
+
+    int detailId(int detail) {
+        return detailIds[detail];
+    }
+
+    int detailValue(int detail) {
+        return detailValues[detail];
+    }
+
+    /**
+     * Adds every tile, channel, and detail of the other store onto this one.
+     */
+    void addAll(TileStore other) {
+        if (other.channels != channels) {
+            throw new IllegalArgumentException("Cannot merge stores with " + other.channels + " and " + channels +
+                                               " channels");
+        }
+
+        for (int otherIndex = 0; otherIndex < other.size; otherIndex++) {
+            int index = getOrAdd(other.keys[otherIndex]);
+
+            for (int channel = 0; channel < channels; channel++) {
+                values[index * channels + channel] += other.values[otherIndex * channels + channel];
+            }
+
+            for (int detail = other.firstDetails[otherIndex]; detail != NONE; detail = other.nextDetails[detail]) {
+                addDetail(index, other.detailIds[detail], other.detailValues[detail]);
+            }
+        }
+    }
+
+    private void grow() {
+        int capacity = keys.length << 1;
+
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity * channels);
+        firstDetails = Arrays.copyOf(firstDetails, capacity);
+
+        table = new int[capacity << 1];
+        Arrays.fill(table, NONE);
+
+        int mask = table.length - 1;
+
+        for (int index = 0; index < size; index++) {
+            int slot = hash(keys[index]) & mask;
+
+            while (table[slot] != NONE) {
+                slot = (slot + 1) & mask;
+            }
+
+            table[slot] = index;
+        }
+    }
+
+    private static int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
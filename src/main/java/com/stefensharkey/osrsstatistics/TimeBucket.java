@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stefensharkey.osrsstatistics;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * A period of time which statistics are grouped into, alongside their all-time totals. Buckets are numbered from the
+ * epoch in UTC, so an hourly bucket divided by {@link #HOURS_PER_DAY} gives the daily bucket which contains it.
+ */
+enum TimeBucket {
+
+    HOURLY("hourly", "MEDIUMINT UNSIGNED", Duration.ofHours(1)),
+    DAILY("daily", "SMALLINT UNSIGNED", Duration.ofDays(1));
+
+    static final int HOURS_PER_DAY = 24;
+
+    private final String suffix;
+    private final String columnType;
+    private final long lengthMillis;
+
+    TimeBucket(String suffix, String columnType, Duration length) {
+        this.suffix = suffix;
+        this.columnType = columnType;
+        lengthMillis = length.toMillis();
+    }
+
+    String tableName(String baseTableName) {
+        return baseTableName + "_" + suffix;
+    }
+
+    String getColumnType() {
+        return columnType;
+    }
+
+    /**
+     * Returns the bucket containing the given time.
+     */
+    int of(long epochMillis) {
+        return (int) Math.floorDiv(epochMillis, lengthMillis);
+    }
+
+    /**
+     * Returns the first bucket which starts at or after the given time, for use as an exclusive upper bound.
+     */
+    int ceiling(Instant instant) {
+        return (int) -Math.floorDiv(-instant.toEpochMilli(), lengthMillis);
+    }
+
+    int floor(Instant instant) {
+        return of(instant.toEpochMilli());
+    }
+}
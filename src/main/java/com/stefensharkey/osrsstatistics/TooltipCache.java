@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.stefensharkey.osrsstatistics;
+
+import net.runelite.client.ui.overlay.tooltip.Tooltip;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+/**
+ * Remembers built tooltips by what they describe, such as a tile or an NPC, along with the version of the data they
+ * were built from. Hovering over the same thing reuses its tooltip until the data changes.
+ */
+class TooltipCache {
+
+    private static final int CAPACITY = 64;
+
+    // Stands in for a key with nothing to show, so that it isn't rebuilt every frame either.
+    private static final Tooltip NO_TOOLTIP = new Tooltip("");
+
+    private final Map<Long, Tooltip> tooltips = new LinkedHashMap<>(CAPACITY, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Tooltip> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    private long version = Long.MIN_VALUE;
+
+    /**
+     * Returns the tooltip for the key, building it if there is none for this version of the data. The builder may
+     * return null if there is nothing to show, in which case so does this.
+     */
+    Tooltip get(long key, long version, LongFunction<Tooltip> builder) {
+        if (this.version != version) {
+            tooltips.clear();
+            this.version = version;
+        }
+
+        Tooltip tooltip = tooltips.get(key);
+
+        if (tooltip == null) {
+            tooltip = builder.apply(key);
+            tooltips.put(key, tooltip == null ? NO_TOOLTIP : tooltip);
+        }
+
+        return tooltip == NO_TOOLTIP ? null : tooltip;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import net.runelite.api.Skill;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Migrates tables laid out as the first version of the plugin wrote them, and checks that every total survives.
+ */
+class SchemaMigratorTest {
+
+    private static final int NPC_ID = 2;
+    private static final int OTHER_NPC_ID = 3;
+    private static final int ITEM_ID = 995;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void migratesVersionOneTables() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + directory.resolve("heatmap"))) {
+            createVersionOneTables(connection);
+            new SchemaMigrator("", SqlDialect.SQLITE).migrate(connection);
+
+            assertEquals(SchemaMigrator.LATEST_VERSION,
+                         queryLong(connection, "SELECT MAX(version) FROM schema_version"));
+            assertEquals(2, queryLong(connection, "SELECT COUNT(*) FROM players"));
+
+            assertEquals(3, queryLong(connection, "SELECT COUNT(*) FROM experience"));
+            assertEquals(150, queryLong(connection, "SELECT SUM(xp) FROM experience WHERE skill_id = " +
+                                                    Skill.ATTACK.ordinal()));
+            assertEquals(3, queryLong(connection, "SELECT SUM(count) FROM experience WHERE skill_id = " +
+                                                  Skill.ATTACK.ordinal()));
+            assertEquals(25, queryLong(connection, "SELECT SUM(xp) FROM experience WHERE skill_id = " +
+                                                   Skill.WOODCUTTING.ordinal()));
+
+            assertEquals(10, queryLong(connection, "SELECT SUM(count) FROM kills"));
+            assertEquals((3264 / 64) * 256 + 3200 / 64,
+                         queryLong(connection, "SELECT region_id FROM kills WHERE x_coord = 3264"));
+            assertEquals(5, queryLong(connection, "SELECT count FROM npc_kills JOIN players USING (player_id)" +
+                                                  " WHERE username = 'Alice' AND npc_id = " + NPC_ID));
+            assertEquals(150, queryLong(connection, "SELECT SUM(quantity) FROM loot"));
+
+            assertEquals(9, queryLong(connection, "SELECT count FROM clan_npc_kills WHERE npc_id = " + NPC_ID));
+            assertEquals(1, queryLong(connection, "SELECT count FROM clan_npc_kills WHERE npc_id = " + OTHER_NPC_ID));
+            assertEquals(10, queryLong(connection, "SELECT SUM(count) FROM clan_kills"));
+            assertEquals(150, queryLong(connection, "SELECT quantity FROM clan_loot WHERE item_id = " + ITEM_ID));
+            assertEquals(150, queryLong(connection, "SELECT SUM(xp) FROM clan_experience WHERE skill_id = " +
+                                                    Skill.ATTACK.ordinal()));
+
+            // Nothing is left behind from the tables each migration rebuilt.
+            assertFalse(queryLong(connection, "SELECT COUNT(*) FROM sqlite_master WHERE name LIKE '%\\_wide'" +
+                                              " ESCAPE '\\' OR name LIKE '%\\_v_' ESCAPE '\\'") > 0);
+        }
+    }
+
+    @Test
+    void migratingAgainChangesNothing() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + directory.resolve("heatmap"))) {
+            createVersionOneTables(connection);
+
+            SchemaMigrator migrator = new SchemaMigrator("", SqlDialect.SQLITE);
+            migrator.migrate(connection);
+            migrator.migrate(connection);
+
+            assertEquals(10, queryLong(connection, "SELECT SUM(count) FROM kills"));
+            assertEquals(10, queryLong(connection, "SELECT SUM(count) FROM clan_kills"));
+            assertEquals(175, queryLong(connection, "SELECT SUM(xp) FROM experience"));
+        }
+    }
+
+    @Test
+    void timestampsAppliedBatches() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + directory.resolve("heatmap"))) {
+            createVersionOneTables(connection);
+
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE applied_batches (batch_id CHAR(36) NOT NULL PRIMARY KEY)");
+                statement.execute("INSERT INTO applied_batches (batch_id) VALUES ('batch')");
+            }
+
+            new SchemaMigrator("", SqlDialect.SQLITE).migrate(connection);
+
+            // Batches applied before the migration are the first to be pruned.
+            assertEquals(0, queryLong(connection, "SELECT applied_at FROM applied_batches WHERE batch_id = 'batch'"));
+        }
+    }
+
+    /**
+     * Creates and fills the tables as the first version of the plugin laid them out, with two columns per skill.
+     */
+    private static void createVersionOneTables(Connection connection) throws SQLException {
+        String skillColumns = Arrays.stream(Skill.values(), 0, Skill.values().length - 1)
+                                    .map(skill -> skill.getName().toLowerCase())
+                                    .map(name -> name + " INT UNSIGNED NOT NULL DEFAULT 0, " +
+                                                 name + "_num INT UNSIGNED NOT NULL DEFAULT 0, ")
+                                    .collect(Collectors.joining());
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("""
+                              CREATE TABLE experience (
+                                  username VARCHAR(50) NOT NULL,
+                                  x_coord MEDIUMINT UNSIGNED NOT NULL,
+                                  y_coord MEDIUMINT UNSIGNED NOT NULL,
+                                  plane TINYINT UNSIGNED NOT NULL,
+                                  world SMALLINT UNSIGNED NOT NULL,
+                              """ + skillColumns + """
+                                  PRIMARY KEY (username, x_coord, y_coord, plane, world)
+                              )
+                              """);
+            statement.execute("""
+                              CREATE TABLE kills (
+                                  username VARCHAR(50) NOT NULL,
+                                  x_coord MEDIUMINT NOT NULL,
+                                  y_coord MEDIUMINT NOT NULL,
+                                  plane TINYINT NOT NULL,
+                                  world SMALLINT UNSIGNED NOT NULL,
+                                  npc_id INT UNSIGNED NOT NULL,
+                                  count INT UNSIGNED NOT NULL DEFAULT 0,
+                                  PRIMARY KEY (username, x_coord, y_coord, plane, world, npc_id)
+                              )
+                              """);
+            statement.execute("""
+                              CREATE TABLE loot (
+                                  username VARCHAR(320) NOT NULL,
+                                  npc_id BIGINT UNSIGNED NOT NULL,
+                                  item_id INT UNSIGNED NOT NULL,
+                                  quantity INT UNSIGNED NOT NULL,
+                                  PRIMARY KEY (username, npc_id, item_id)
+                              )
+                              """);
+
+            statement.execute("INSERT INTO experience (username, x_coord, y_coord, plane, world, attack, attack_num)" +
+                              " VALUES ('Alice', 3200, 3200, 0, 301, 100, 2), ('Alice', 3201, 3200, 0, 301, 50, 1)");
+            statement.execute("INSERT INTO experience (username, x_coord, y_coord, plane, world, woodcutting," +
+                              " woodcutting_num) VALUES ('Bob', 3200, 3200, 0, 302, 25, 1)");
+            statement.execute("INSERT INTO kills (username, x_coord, y_coord, plane, world, npc_id, count) VALUES" +
+                              " ('Alice', 3200, 3200, 0, 301, " + NPC_ID + ", 3)," +
+                              " ('Alice', 3264, 3200, 0, 301, " + NPC_ID + ", 2)," +
+                              " ('Bob', 3200, 3200, 0, 302, " + NPC_ID + ", 4)," +
+                              " ('Bob', 3200, 3200, 0, 302, " + OTHER_NPC_ID + ", 1)");
+            statement.execute("INSERT INTO loot (username, npc_id, item_id, quantity) VALUES" +
+                              " ('Alice', " + NPC_ID + ", " + ITEM_ID + ", 100)," +
+                              " ('Bob', " + NPC_ID + ", " + ITEM_ID + ", 50)");
+        }
+    }
+
+    private static long queryLong(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(sql)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+}
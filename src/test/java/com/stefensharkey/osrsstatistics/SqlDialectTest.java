@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the SQL each dialect builds. There is no MySQL server to run against, so its statements are compared as
+ * text, while SQLite's are run.
+ */
+class SqlDialectTest {
+
+    private static final String SELECT_PLAYER_ROWS = "SELECT npc_id, count FROM npc_kills WHERE player_id = ?";
+
+    @Test
+    void mySqlUpsertNamesExistingColumnsThroughTheirTable() {
+        assertEquals("INSERT INTO clan_npc_kills (npc_id, count) VALUES (?, ?)" +
+                     " ON DUPLICATE KEY UPDATE clan_npc_kills.count = clan_npc_kills.count + VALUES(count)",
+                     SqlDialect.MYSQL.incrementUpsert("clan_npc_kills", List.of("npc_id"), List.of("count")));
+    }
+
+    @Test
+    void mySqlUpsertSelectIsUnambiguous() {
+        // The query's table has a count column too, which MySQL would otherwise reject as ambiguous.
+        assertEquals("INSERT INTO clan_npc_kills (npc_id, count) " + SELECT_PLAYER_ROWS +
+                     " ON DUPLICATE KEY UPDATE clan_npc_kills.count = clan_npc_kills.count + VALUES(count)",
+                     SqlDialect.MYSQL.incrementUpsertSelect("clan_npc_kills", List.of("npc_id"), List.of("count"),
+                                                            SELECT_PLAYER_ROWS));
+    }
+
+    @Test
+    void sqliteUpsertSelectAddsOntoExistingRows() throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE npc_kills (player_id INT NOT NULL, npc_id INT NOT NULL," +
+                                  " count INT NOT NULL, PRIMARY KEY (player_id, npc_id))");
+                statement.execute("CREATE TABLE clan_npc_kills (npc_id INT NOT NULL PRIMARY KEY, count INT NOT NULL)");
+                statement.execute("INSERT INTO npc_kills (player_id, npc_id, count) VALUES (1, 2, 3), (1, 4, 5)");
+                statement.execute("INSERT INTO clan_npc_kills (npc_id, count) VALUES (2, 10)");
+            }
+
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    SqlDialect.SQLITE.incrementUpsertSelect("clan_npc_kills", List.of("npc_id"), List.of("count"),
+                                                            SELECT_PLAYER_ROWS))) {
+                preparedStatement.setInt(1, 1);
+                preparedStatement.executeUpdate();
+            }
+
+            assertEquals(13, queryInt(connection, "SELECT count FROM clan_npc_kills WHERE npc_id = 2"));
+            assertEquals(5, queryInt(connection, "SELECT count FROM clan_npc_kills WHERE npc_id = 4"));
+        }
+    }
+
+    private static int queryInt(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(sql)) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import net.runelite.api.Skill;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Exports a player's statistics to a snapshot and imports it into another database, checking that every row comes
+ * back unchanged.
+ */
+class StatisticsArchiveTest {
+
+    // More kill tiles than fit in one block of a snapshot.
+    private static final int TILES = 5000;
+
+    @TempDir
+    Path directory;
+
+    private Database source;
+    private Database target;
+
+    @BeforeEach
+    void setUp() {
+        StatisticsMetrics metrics = new StatisticsMetrics();
+        source = Database.openSqlite(directory.resolve("source"), metrics);
+        target = Database.openSqlite(directory.resolve("target"), metrics);
+
+        long now = System.currentTimeMillis();
+        // Old enough to be rolled up into daily rows.
+        long lastMonth = now - TimeUnit.DAYS.toMillis(30);
+
+        source.writeBuffer(buffer("Alice", lastMonth));
+        source.rollUp();
+        source.writeBuffer(buffer("Alice", now));
+        source.writeBuffer(buffer("Bob", now));
+    }
+
+    @AfterEach
+    void tearDown() {
+        source.close();
+        target.close();
+    }
+
+    @Test
+    void importsExportedRows() throws IOException, SQLException {
+        Path file = directory.resolve("Alice.snapshot");
+        long exportedRows = StatisticsArchive.export(source, "Alice", file);
+
+        assertTrue(exportedRows > TILES);
+        assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".part")));
+        assertEquals(exportedRows, StatisticsArchive.restore(target, "Alice", file));
+
+        for (Database.SnapshotTable table : Database.SNAPSHOT_TABLES) {
+            List<List<Long>> sourceRows = rows(source, "Alice", table);
+
+            // The history reaches every table, including the daily ones.
+            assertFalse(sourceRows.isEmpty(), table.name());
+            assertEquals(sourceRows, rows(target, "Alice", table), table.name());
+        }
+
+        // The clan totals are rebuilt from the imported rows, and nobody else's rows came across.
+        assertEquals(sum(target, "SELECT SUM(count) FROM kills"), sum(target, "SELECT SUM(count) FROM clan_kills"));
+        assertEquals(sum(target, "SELECT SUM(xp) FROM experience"), sum(target, "SELECT SUM(xp) FROM clan_experience"));
+        assertEquals(0, rows(target, "Bob", Database.SNAPSHOT_TABLES.get(0)).size());
+    }
+
+    @Test
+    void importingAgainReplacesRows() throws IOException, SQLException {
+        Path file = directory.resolve("Alice.snapshot");
+        StatisticsArchive.export(source, "Alice", file);
+        StatisticsArchive.restore(target, "Alice", file);
+        StatisticsArchive.restore(target, "Alice", file);
+
+        for (Database.SnapshotTable table : Database.SNAPSHOT_TABLES) {
+            assertEquals(rows(source, "Alice", table), rows(target, "Alice", table), table.name());
+        }
+
+        assertEquals(sum(source, "SELECT SUM(count) FROM npc_kills WHERE player_id = (SELECT player_id FROM players" +
+                                 " WHERE username = 'Alice')"),
+                     sum(target, "SELECT SUM(count) FROM clan_npc_kills"));
+    }
+
+    /**
+     * Builds a history of kills on {@link #TILES} tiles, with XP and loot alongside, all at the given time.
+     */
+    private static StatisticsBuffer buffer(String username, long time) {
+        StatisticsBuffer buffer = new StatisticsBuffer();
+
+        for (int tile = 0; tile < TILES; tile++) {
+            int x = 3000 + tile % 100;
+            int y = 3000 + tile / 100;
+
+            buffer.add(new StatisticsEvent.Kill(username, x, y, tile % 2, 301, tile % 7, time));
+            buffer.add(new StatisticsEvent.Xp(username, x, y, 0, 302, Skill.values()[tile % 23], tile + 1, time));
+
+            if (tile % 10 == 0) {
+                buffer.add(new StatisticsEvent.Loot(username, tile % 7, tile, tile + 1, time));
+            }
+        }
+
+        return buffer;
+    }
+
+    private static List<List<Long>> rows(Database database, String username, Database.SnapshotTable table) {
+        List<List<Long>> rows = new ArrayList<>();
+        int columns = table.columns().size();
+
+        database.exportSnapshotRows(username, table, row -> {
+            List<Long> values = new ArrayList<>(columns);
+
+            for (int column = 1; column <= columns; column++) {
+                values.add(row.getLong(column));
+            }
+
+            rows.add(values);
+        });
+
+        return rows;
+    }
+
+    private static long sum(Database database, String sql) throws SQLException {
+        return database.executeQuery(sql, resultSet -> resultSet.next() ? resultSet.getLong(1) : 0);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020, Stefen Sharkey <https://github.com/StefenSharkey>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.stefensharkey.osrsstatistics;
+
+import net.runelite.api.Skill;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class StatisticsJournalTest {
+
+    private static final List<StatisticsEvent> EVENTS = List.of(
+            new StatisticsEvent.Kill("Alice", 3200, 3201, 0, 301, 2, 1_600_000_000_000L),
+            new StatisticsEvent.Xp("Alice", 3200, 3201, 1, 302, Skill.WOODCUTTING, 25, 1_600_000_001_000L),
+            new StatisticsEvent.Loot("Alice", 2, 995, 100, 1_600_000_002_000L));
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysEventsAfterReopening() throws IOException {
+        try (StatisticsJournal journal = StatisticsJournal.open(directory)) {
+            for (StatisticsEvent event : EVENTS) {
+                journal.append(event);
+            }
+        }
+
+        try (StatisticsJournal journal = StatisticsJournal.open(directory)) {
+            assertEquals(EVENTS.size(), journal.getNextSequence());
+
+            for (int sequence = 0; sequence < EVENTS.size(); sequence++) {
+                assertEquals(EVENTS.get(sequence), journal.read(sequence));
+            }
+
+            // Appending carries on from where the last run stopped.
+            assertEquals(EVENTS.size(), journal.append(EVENTS.get(0)));
+        }
+    }
+
+    @Test
+    void keepsItsIdAcrossRuns() throws IOException {
+        StatisticsJournal journal = StatisticsJournal.open(directory);
+        journal.close();
+
+        try (StatisticsJournal reopenedJournal = StatisticsJournal.open(directory)) {
+            assertEquals(journal.getId(), reopenedJournal.getId());
+        }
+    }
+
+    @Test
+    void releasesOnlyWrittenSegments() throws IOException {
+        // One more event than fits in a segment.
+        int events = 16384 + 1;
+
+        try (StatisticsJournal journal = StatisticsJournal.open(directory)) {
+            for (int x = 0; x < events; x++) {
+                journal.append(EVENTS.get(x % EVENTS.size()));
+            }
+
+            journal.release(events - 2);
+        }
+
+        try (StatisticsJournal journal = StatisticsJournal.open(directory)) {
+            assertEquals(events, journal.getNextSequence());
+            assertNull(journal.read(0));
+            assertEquals(EVENTS.get((events - 1) % EVENTS.size()), journal.read(events - 1));
+        }
+    }
+
+    @Test
+    void givesEachOpenClientItsOwnJournal() throws IOException {
+        try (StatisticsJournal journal = StatisticsJournal.open(directory);
+             StatisticsJournal otherJournal = StatisticsJournal.open(directory)) {
+            assertEquals(0, journal.getInstance());
+            assertEquals(1, otherJournal.getInstance());
+            assertNotEquals(journal.getId(), otherJournal.getId());
+
+            journal.append(EVENTS.get(0));
+            otherJournal.append(EVENTS.get(1));
+            otherJournal.append(EVENTS.get(2));
+        }
+
+        // Once the first client has closed its journal, the next one to start takes it over again.
+        try (StatisticsJournal journal = StatisticsJournal.open(directory)) {
+            assertEquals(0, journal.getInstance());
+            assertEquals(1, journal.getNextSequence());
+            assertEquals(EVENTS.get(0), journal.read(0));
+        }
+
+        try (StatisticsJournal journal = StatisticsJournal.open(StatisticsJournal.instancePath(directory, 1))) {
+            assertEquals(2, journal.getNextSequence());
+            assertEquals(EVENTS.get(2), journal.read(1));
+        }
+    }
+}